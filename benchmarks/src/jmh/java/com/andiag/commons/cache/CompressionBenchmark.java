@@ -0,0 +1,126 @@
+package com.andiag.commons.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * CPU cost of each codec against the disk I/O it saves, on JSON bodies shaped like typical REST
+ * responses. {@code compress} and {@code decompress} measure the codec alone, {@code write} and
+ * {@code read} go through {@link Compression} and a synced file like {@link DiskCache} does.
+ * The stored size of each body is printed when a trial ends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"1", "16", "128"})
+    public int mKilobytes;
+
+    @Param({"none", "deflate", "lz4"})
+    public String mCodec;
+
+    private byte[] mJson;
+    private Compression mCompression;
+    private Compression.Codec mCodecImpl;
+    private byte[] mCompressed;
+    private File mFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mJson = json(mKilobytes * 1024);
+        if ("deflate".equals(mCodec)) {
+            mCodecImpl = new DeflateCodec();
+        } else if ("lz4".equals(mCodec)) {
+            mCodecImpl = new Lz4Codec();
+        }
+        mCompression = mCodecImpl == null ? Compression.none()
+                : new Compression(0, Compression.DEFAULT_MIN_RATIO, mCodecImpl);
+        mCompressed = mCodecImpl == null ? mJson : mCodecImpl.compress(mJson);
+
+        mFile = File.createTempFile("compression", ".0");
+        write();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(mCodec + ": " + mJson.length + " -> " + mFile.length() + " bytes on disk");
+        mFile.delete();
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        return mCodecImpl == null ? mJson : mCodecImpl.compress(mJson);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        return mCodecImpl == null ? mCompressed : mCodecImpl.decompress(mCompressed, mJson.length);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        Buffer buffer = new Buffer();
+        mCompression.write(mJson, buffer);
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            long size = buffer.size();
+            buffer.writeTo(output);
+            output.getFD().sync();
+            return size;
+        } finally {
+            output.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] read() throws IOException {
+        BufferedSource source = Okio.buffer(Okio.source(new FileInputStream(mFile)));
+        try {
+            return mCompression.read(source, mFile.length());
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Pages of user objects with the repetitive keys and values of a real API response.
+     */
+    private static byte[] json(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder(size + 256).append("{\"page\":1,\"items\":[");
+        for (int id = 0; builder.length() < size; id++) {
+            builder.append("{\"id\":").append(random.nextInt(1000000))
+                    .append(",\"login\":\"user").append(id)
+                    .append("\",\"avatar_url\":\"https://avatars.example.com/u/").append(id)
+                    .append("?v=4\",\"type\":\"User\",\"site_admin\":").append(random.nextBoolean())
+                    .append(",\"score\":").append(random.nextFloat() * 100)
+                    .append(",\"created_at\":\"2017-0").append(1 + random.nextInt(9))
+                    .append("-1").append(random.nextInt(10)).append("T10:").append(10 + random.nextInt(50))
+                    .append(":00Z\"},");
+        }
+        builder.setLength(builder.length() - 1);
+        return builder.append("]}").toString().getBytes(UTF_8);
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.andiag.commons.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a trace of requests against each RAM policy, storing every miss, and prints the hit
+ * ratio when a trial ends. {@code lru} is the current 50 entries LRU of
+ * {@link com.andiag.commons.RetroCache#getRamCache(int)}, which ignores sizes, {@code lru-bytes}
+ * an LRU with the same byte budget as {@code tinylfu}.
+ * <p>
+ * {@code zipf} requests popular responses far more often than the rest, {@code scan} adds bursts
+ * of responses requested once, like paging through a long list. Real traces can be replayed with
+ * {@code -p mTrace=/path/to/trace}, a file with one {@code key size} request per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HitRatioBenchmark {
+    private static final int LRU_ENTRIES = 50;
+    private static final int KEYS = 20000;
+    private static final int REQUESTS = 300000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final int SCAN_EVERY = 10000;
+    private static final int SCAN_LENGTH = 2000;
+    private static final byte[] VALUE = new byte[0];
+
+    @Param({"zipf", "scan"})
+    public String mTrace;
+
+    @Param({"1", "4"})
+    public int mMegabytes;
+
+    @Param({"lru", "lru-bytes", "tinylfu"})
+    public String mPolicy;
+
+    private String[] mKeys;
+    private int[] mSizes;
+    private long mHits;
+    private long mHitBytes;
+    private long mTotalBytes;
+    private long mPeakWeight;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        if ("zipf".equals(mTrace) || "scan".equals(mTrace)) {
+            synthetic(keys, sizes, "scan".equals(mTrace));
+        } else {
+            read(new File(mTrace), keys, sizes);
+        }
+        mKeys = keys.toArray(new String[keys.size()]);
+        mSizes = new int[sizes.size()];
+        mTotalBytes = 0;
+        for (int i = 0; i < mSizes.length; i++) {
+            mSizes[i] = sizes.get(i);
+            mTotalBytes += mSizes[i];
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(mPolicy + ": " + percent(mHits, mKeys.length) + " hits, "
+                + percent(mHitBytes, mTotalBytes) + " bytes hit, up to " + mPeakWeight / 1024 + " KB held");
+    }
+
+    @Benchmark
+    public long replay() {
+        Policy cache = "tinylfu".equals(mPolicy) ? new TinyLfu(mMegabytes * 1024L * 1024L)
+                : "lru-bytes".equals(mPolicy) ? new Lru(Integer.MAX_VALUE, mMegabytes * 1024L * 1024L)
+                : new Lru(LRU_ENTRIES, Long.MAX_VALUE);
+        long hits = 0;
+        long hitBytes = 0;
+        long peakWeight = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (cache.get(mKeys[i])) {
+                hits++;
+                hitBytes += mSizes[i];
+            } else {
+                cache.put(mKeys[i], mSizes[i]);
+                peakWeight = Math.max(peakWeight, cache.weight());
+            }
+        }
+        mHits = hits;
+        mHitBytes = hitBytes;
+        mPeakWeight = peakWeight;
+        return hits;
+    }
+
+    /**
+     * Zipf distributed requests over responses of 1 to 16 KB, one in ten of 64 to 512 KB.
+     */
+    private static void synthetic(List<String> keys, List<Integer> sizes, boolean scans) {
+        Random random = new Random(KEYS);
+        int[] keySizes = new int[KEYS];
+        double[] cumulative = new double[KEYS];
+        double total = 0;
+        for (int rank = 0; rank < KEYS; rank++) {
+            keySizes[rank] = random.nextInt(10) == 0 ? (64 + random.nextInt(448)) * 1024 : (1 + random.nextInt(16)) * 1024;
+            total += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = total;
+        }
+        int scanned = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (scans && i % SCAN_EVERY == 0) {
+                for (int j = 0; j < SCAN_LENGTH; j++) {
+                    keys.add("/items?page=" + scanned++);
+                    sizes.add((1 + random.nextInt(16)) * 1024);
+                }
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            rank = rank < 0 ? -rank - 1 : rank;
+            keys.add("/items/" + rank);
+            sizes.add(keySizes[rank]);
+        }
+    }
+
+    private static void read(File file, List<String> keys, List<Integer> sizes) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2) {
+                    keys.add(fields[0]);
+                    sizes.add(Integer.parseInt(fields[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String percent(long part, long total) {
+        return String.format("%.2f%%", total == 0 ? 0 : 100.0 * part / total);
+    }
+
+    private interface Policy {
+
+        boolean get(String key);
+
+        void put(String key, int size);
+
+        long weight();
+    }
+
+    private static final class TinyLfu implements Policy {
+        private final TinyLfuPolicy mPolicy;
+
+        TinyLfu(long maxBytes) {
+            this.mPolicy = new TinyLfuPolicy(maxBytes);
+        }
+
+        @Override
+        public boolean get(String key) {
+            return mPolicy.get(key) != null;
+        }
+
+        @Override
+        public void put(String key, int size) {
+            mPolicy.put(key, VALUE, size);
+        }
+
+        @Override
+        public long weight() {
+            return mPolicy.weight();
+        }
+    }
+
+    private static final class Lru implements Policy {
+        private final Map<String, Integer> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int mMaxEntries;
+        private final long mMaxBytes;
+        private long mWeight;
+
+        Lru(int maxEntries, long maxBytes) {
+            this.mMaxEntries = maxEntries;
+            this.mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public boolean get(String key) {
+            return mEntries.get(key) != null;
+        }
+
+        @Override
+        public void put(String key, int size) {
+            if (size > mMaxBytes) {
+                return;
+            }
+            mEntries.put(key, size);
+            mWeight += size;
+            Iterator<Map.Entry<String, Integer>> eldest = mEntries.entrySet().iterator();
+            while (mEntries.size() > mMaxEntries || mWeight > mMaxBytes) {
+                mWeight -= eldest.next().getValue();
+                eldest.remove();
+            }
+        }
+
+        @Override
+        public long weight() {
+            return mWeight;
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.andiag.commons.cache;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+
+/**
+ * LZ4 {@link Compression.Codec} backed by lz4-java, used to compare it with {@link DeflateCodec}.
+ * Benchmark only: it is not part of the library, apps wanting LZ4 write their own codec.
+ */
+public final class Lz4Codec implements Compression.Codec {
+    public static final int ID = 2;
+
+    private final LZ4Compressor mCompressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor mDecompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        byte[] buffer = new byte[mCompressor.maxCompressedLength(data.length)];
+        int length = mCompressor.compress(data, 0, data.length, buffer, 0, buffer.length);
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int originalLength) throws IOException {
+        try {
+            return mDecompressor.decompress(data, originalLength);
+        } catch (LZ4Exception exc) {
+            throw new IOException(exc);
+        }
+    }
+
+}
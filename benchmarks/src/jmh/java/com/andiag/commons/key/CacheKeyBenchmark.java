@@ -0,0 +1,78 @@
+package com.andiag.commons.key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Compares the previous SHA-1 over {@code url.toString()} key against {@link CacheKey}, and
+ * measures the cost of ignoring query parameters with a {@link UrlNormalizer}.
+ * Run it with {@code -prof gc} to see the allocation rate of each path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheKeyBenchmark {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Param({
+            "https://api.example.com/",
+            "https://api.example.com/v2/users/42/repos?page=3&per_page=100",
+            "https://api.example.com/v2/search/items?q=retrofit%20cache&sort=stars&order=desc&lang=en_US&page=12",
+            "https://api.example.com/v2/articles?utm_source=newsletter&utm_medium=email&utm_campaign=launch&id=42&_=1500000000"
+    })
+    public String mUrl;
+
+    private HttpUrl mHttpUrl;
+    private MessageDigest mDigest;
+    private UrlNormalizer mTrackingNormalizer;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        mHttpUrl = HttpUrl.parse(mUrl);
+        mDigest = MessageDigest.getInstance("SHA-1");
+        mTrackingNormalizer = new UrlNormalizer.Builder().ignore("utm_*", "_").build();
+    }
+
+    /**
+     * Same work {@code Hashing.sha1(url.toString(), Charset.defaultCharset())} used to do.
+     */
+    @Benchmark
+    public String sha1Hex() {
+        byte[] digest = mDigest.digest(mHttpUrl.toString().getBytes(Charset.defaultCharset()));
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public CacheKey cacheKey() {
+        return CacheKey.of(mHttpUrl);
+    }
+
+    @Benchmark
+    public String cacheKeyString() {
+        return CacheKey.of(mHttpUrl).toString();
+    }
+
+    @Benchmark
+    public CacheKey ignoringTrackingKey() {
+        return mTrackingNormalizer.key(mHttpUrl);
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.andiag.commons;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.andiag.commons.cache.CacheEntry;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Converts cached bytes from and to the response type of a service method. Converters are
+ * resolved once, when the call adapter is created, so cache hits decode directly.
+ */
+public final class CacheConverter<T> {
+    private static final String TAG = "CacheConverter";
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    private final Converter<ResponseBody, T> mResponseConverter;
+    private final Converter<T, RequestBody> mRequestConverter;
+
+    private CacheConverter(Converter<ResponseBody, T> responseConverter,
+                           Converter<T, RequestBody> requestConverter) {
+        this.mResponseConverter = responseConverter;
+        this.mRequestConverter = requestConverter;
+    }
+
+    /**
+     * Resolve the converters for a service method.
+     *
+     * @param retrofit     owning the converter factories.
+     * @param responseType of the service method.
+     * @param annotations  of the service method.
+     * @return {@link CacheConverter}.
+     */
+    public static <T> CacheConverter<T> create(Retrofit retrofit, Type responseType,
+                                               Annotation[] annotations) {
+        Converter<ResponseBody, T> responseConverter;
+        try {
+            responseConverter = retrofit.responseBodyConverter(responseType, annotations);
+        } catch (IllegalArgumentException noConverter) {
+            // Retrofit itself will report the missing converter when building the method
+            responseConverter = null;
+        }
+
+        Converter<T, RequestBody> requestConverter;
+        try {
+            requestConverter = retrofit.requestBodyConverter(responseType, NO_ANNOTATIONS,
+                    annotations);
+        } catch (IllegalArgumentException noConverter) {
+            // Only needed when the raw response bytes are not captured
+            requestConverter = null;
+        }
+        return new CacheConverter<>(responseConverter, requestConverter);
+    }
+
+    /**
+     * @param data cached bytes.
+     * @return decoded body or null if it can't be decoded.
+     */
+    @Nullable
+    public T fromBytes(byte[] data) {
+        return convert(ResponseBody.create(null, data));
+    }
+
+    /**
+     * @param entry cached entry, its body is decoded in place.
+     * @return decoded body or null if it can't be decoded.
+     */
+    @Nullable
+    public T fromEntry(@NonNull CacheEntry entry) {
+        return convert(entry.body());
+    }
+
+    private T convert(ResponseBody body) {
+        if (mResponseConverter == null) {
+            return null;
+        }
+        try {
+            return mResponseConverter.convert(body);
+        } catch (IOException | RuntimeException exc) {
+            Log.e(TAG, "Unable to decode cached body", exc);
+            return null;
+        }
+    }
+
+    /**
+     * Serialize a body again using the request body converter.
+     *
+     * @param data decoded body.
+     * @return bytes to cache or null if it can't be serialized.
+     */
+    @Nullable
+    public byte[] toBytes(T data) {
+        if (data == null || mRequestConverter == null) {
+            return null;
+        }
+        Buffer buffer = new Buffer();
+        try {
+            mRequestConverter.convert(data).writeTo(buffer);
+        } catch (IOException exc) {
+            return null;
+        }
+        return buffer.readByteArray();
+    }
+
+}
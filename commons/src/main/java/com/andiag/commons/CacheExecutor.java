@@ -0,0 +1,141 @@
+package com.andiag.commons;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool running cache lookups that may block on disk. Threads are created on demand and
+ * die after being idle, so an idle app keeps no thread alive.
+ * <p>
+ * The queue is bounded too. When it is full the task runs on the thread submitting it, which
+ * slows callers down instead of piling up lookups without limit or dropping their callbacks.
+ * <p>
+ * Exposes queue metrics to size the pool: {@link #getQueueSize()},
+ * {@link #getPeakQueueSize()}, {@link #getAverageQueueMillis()} and {@link #getCallerRuns()}.
+ */
+public final class CacheExecutor extends ThreadPoolExecutor {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_SIZE = 128;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static CacheExecutor sDefault;
+
+    private final AtomicInteger mPeakQueueSize = new AtomicInteger();
+    private final AtomicLong mQueuedNanos = new AtomicLong();
+    private final AtomicLong mQueuedTasks = new AtomicLong();
+    private final AtomicLong mCallerRuns = new AtomicLong();
+    private final int mQueueCapacity;
+
+    /**
+     * @param threads maximum number of threads, with a queue of {@link #DEFAULT_QUEUE_SIZE}.
+     */
+    public CacheExecutor(int threads) {
+        this(threads, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param threads   maximum number of threads.
+     * @param queueSize maximum number of tasks waiting for a thread, others run on the caller.
+     */
+    public CacheExecutor(int threads, int queueSize) {
+        super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, "RetroCache-io-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new CallerRunsPolicy() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                mCallerRuns.incrementAndGet();
+                super.rejectedExecution(runnable, executor);
+            }
+        });
+        this.mQueueCapacity = queueSize;
+    }
+
+    /**
+     * @return executor shared by every factory not given one.
+     */
+    public static synchronized CacheExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new CacheExecutor(DEFAULT_THREADS);
+        }
+        return sDefault;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        super.execute(new Queued(command));
+        int size = getQueue().size();
+        int peak = mPeakQueueSize.get();
+        while (size > peak && !mPeakQueueSize.compareAndSet(peak, size)) {
+            peak = mPeakQueueSize.get();
+        }
+    }
+
+    /**
+     * @return tasks waiting for a thread.
+     */
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return maximum number of tasks waiting for a thread.
+     */
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return tasks run on the submitting thread because the queue was full.
+     */
+    public long getCallerRuns() {
+        return mCallerRuns.get();
+    }
+
+    /**
+     * @return highest number of tasks that were waiting for a thread at once.
+     */
+    public int getPeakQueueSize() {
+        return mPeakQueueSize.get();
+    }
+
+    /**
+     * @return average time tasks waited for a thread, in milliseconds.
+     */
+    public double getAverageQueueMillis() {
+        long tasks = mQueuedTasks.get();
+        return tasks == 0 ? 0 : mQueuedNanos.get() / (tasks * 1e6);
+    }
+
+    private final class Queued implements Runnable {
+        private final Runnable mDelegate;
+        private final long mQueuedAt = System.nanoTime();
+
+        Queued(Runnable delegate) {
+            this.mDelegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            mQueuedNanos.addAndGet(System.nanoTime() - mQueuedAt);
+            mQueuedTasks.incrementAndGet();
+            mDelegate.run();
+        }
+    }
+
+}
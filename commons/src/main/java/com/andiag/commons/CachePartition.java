@@ -0,0 +1,23 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cache the responses of a service method in a partition of a
+ * {@link com.andiag.commons.cache.PartitionedCache}, with its own quota, so large responses of
+ * other methods can't evict them.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CachePartition {
+
+    /**
+     * @return name of the partition.
+     */
+    String value();
+}
@@ -0,0 +1,23 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Tags of the responses cached for a service method, to invalidate them all at once with
+ * {@code invalidateTag}. Tags can use the path parameters of the method, {@code "user:{id}"} on
+ * {@code @GET("users/{id}/repos")} tags the repositories of user 42 as {@code "user:42"}.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheTags {
+
+    /**
+     * @return tags, with {@code {name}} placeholders for path parameters.
+     */
+    String[] value();
+}
@@ -0,0 +1,25 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Life time of the responses cached for a service method. Overrides the freshness lifetime
+ * declared by the response headers. Expired entries are revalidated or fetched again.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheTtl {
+
+    /**
+     * @return life time, must be positive.
+     */
+    long value();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
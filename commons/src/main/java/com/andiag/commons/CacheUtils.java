@@ -1,21 +1,25 @@
 package com.andiag.commons;
 
 import android.support.annotation.NonNull;
-import android.util.Log;
+import android.support.annotation.Nullable;
 
-import com.iagocanalejas.dualcache.hashing.Hashing;
+import com.andiag.commons.cache.CacheEntry;
+import com.andiag.commons.key.CacheKey;
+import com.andiag.commons.key.KeyComposer;
+import com.andiag.commons.key.UrlNormalizer;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Type;
-import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.HttpUrl;
-import okhttp3.RequestBody;
+import okhttp3.Request;
 import okhttp3.ResponseBody;
-import okio.Buffer;
-import retrofit2.Converter;
-import retrofit2.Retrofit;
+import okio.BufferedSource;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.http.HTTP;
+import retrofit2.http.POST;
 
 /**
  * Created by Canalejas on 22/02/2017.
@@ -23,64 +27,178 @@ import retrofit2.Retrofit;
 
 public final class CacheUtils {
 
+    /**
+     * Find an annotation of the given type in a method annotations.
+     *
+     * @param annotations of the service method.
+     * @param cls         annotation type.
+     * @return the annotation or null if not present.
+     */
     @SuppressWarnings("unchecked")
-    public static <T> byte[] responseToBytes(Retrofit retrofit, T data, Type dataType, Annotation[] annotations) {
-        if (data == null) {
-            return null;
-        }
-
-        for (Converter.Factory factory : retrofit.converterFactories()) {
-            if (factory == null) {
-                continue;
-            }
-            Converter<T, RequestBody> converter;
-            converter = (Converter<T, RequestBody>) factory.requestBodyConverter(
-                    dataType, annotations, null, retrofit);
-
-            if (converter != null) {
-                Buffer buff = new Buffer();
-                try {
-                    converter.convert(data).writeTo(buff);
-                } catch (IOException ioException) {
-                    continue;
-                }
-
-                return buff.readByteArray();
+    public static <A extends Annotation> A findAnnotation(Annotation[] annotations, Class<A> cls) {
+        for (Annotation annotation : annotations) {
+            if (cls.isInstance(annotation)) {
+                return (A) annotation;
             }
         }
         return null;
     }
 
-    @SuppressWarnings("unchecked")
-    public static <T> T bytesToResponse(Retrofit retrofit, Type dataType, Annotation[] annotations, byte[] data) {
-        for (Converter.Factory factory : retrofit.converterFactories()) {
-            if (factory == null) {
-                continue;
+    /**
+     * Resolve the {@link CacheTtl} of a service method.
+     *
+     * @param annotations of the service method.
+     * @return life time in milliseconds, 0 if the method is not annotated.
+     * @throws IllegalArgumentException if the life time is not positive.
+     */
+    public static long ttlMillis(Annotation[] annotations) {
+        CacheTtl ttl = findAnnotation(annotations, CacheTtl.class);
+        return ttl != null ? toMillis("@CacheTtl", ttl.value(), ttl.unit()) : 0;
+    }
+
+    /**
+     * Resolve the {@link NegativeCacheTtl} of a service method.
+     *
+     * @param annotations of the service method.
+     * @return life time in milliseconds of the cached errors, 0 if they are not cached.
+     * @throws IllegalArgumentException if the life time is not positive.
+     */
+    public static long negativeTtlMillis(Annotation[] annotations) {
+        NegativeCacheTtl ttl = findAnnotation(annotations, NegativeCacheTtl.class);
+        return ttl != null ? toMillis("@NegativeCacheTtl", ttl.value(), ttl.unit()) : 0;
+    }
+
+    /**
+     * Resolve the {@link StaleIfError} window of a service method.
+     *
+     * @param annotations of the service method.
+     * @return window in milliseconds, 0 if expired responses are never served.
+     * @throws IllegalArgumentException if the window is not positive.
+     */
+    public static long staleIfErrorMillis(Annotation[] annotations) {
+        StaleIfError staleIfError = findAnnotation(annotations, StaleIfError.class);
+        return staleIfError != null ? toMillis("@StaleIfError", staleIfError.value(), staleIfError.unit()) : 0;
+    }
+
+    /**
+     * Resolve how the requests of a service method are keyed, with urls normalized by
+     * {@link UrlNormalizer#DEFAULT}.
+     *
+     * @see #keyComposer(Annotation[], UrlNormalizer)
+     */
+    public static KeyComposer keyComposer(Annotation[] annotations) {
+        return keyComposer(annotations, UrlNormalizer.DEFAULT);
+    }
+
+    /**
+     * Resolve how the requests of a service method are keyed, see {@link CacheablePost} and
+     * {@link VaryHeaders}.
+     *
+     * @param annotations of the service method.
+     * @param normalizer  of the urls.
+     * @return {@link KeyComposer} of the method.
+     * @throws IllegalArgumentException if a method other than {@code POST} declares
+     *                                  {@link CacheablePost}, or if a {@link VaryHeaders} name
+     *                                  is empty.
+     */
+    public static KeyComposer keyComposer(Annotation[] annotations, UrlNormalizer normalizer) {
+        boolean cachePost = findAnnotation(annotations, CacheablePost.class) != null;
+        VaryHeaders vary = findAnnotation(annotations, VaryHeaders.class);
+        if (!cachePost && vary == null && normalizer == UrlNormalizer.DEFAULT) {
+            return KeyComposer.URL;
+        }
+        HTTP http = findAnnotation(annotations, HTTP.class);
+        if (cachePost && findAnnotation(annotations, POST.class) == null
+                && (http == null || !http.method().equals("POST"))) {
+            throw new IllegalArgumentException("@CacheablePost can only be used on POST methods");
+        }
+        String[] varyHeaders = vary != null ? vary.value() : new String[0];
+        for (String name : varyHeaders) {
+            if (name.trim().isEmpty()) {
+                throw new IllegalArgumentException("@VaryHeaders names can't be empty");
             }
-            Converter<ResponseBody, T> converter =
-                    (Converter<ResponseBody, T>) factory.responseBodyConverter(
-                            dataType, annotations, retrofit);
-
-            if (converter != null) {
-                try {
-                    return converter.convert(ResponseBody.create(null, data));
-                } catch (IOException | NullPointerException exc) {
-                    Log.e("CachedCall", "", exc);
-                }
+        }
+        return new KeyComposer(cachePost, varyHeaders, normalizer);
+    }
+
+    /**
+     * @return true if the response is an expired cache entry served because of a network error.
+     * @see StaleIfError
+     */
+    public static boolean isStale(@NonNull Response<?> response) {
+        for (String warning : response.headers().values("Warning")) {
+            if (warning.startsWith(CacheEntry.STALE_WARNING_CODE)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private static long toMillis(String annotation, long value, TimeUnit unit) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(annotation + " must be positive: " + value);
+        }
+        return unit.toMillis(value);
+    }
 
-        return null;
+    /**
+     * Read the error body of a response without consuming it, Retrofit buffers it in memory.
+     *
+     * @return error body bytes, null if there is none.
+     */
+    @Nullable
+    public static byte[] errorBytes(@NonNull Response<?> response) {
+        ResponseBody errorBody = response.errorBody();
+        if (errorBody == null) {
+            return null;
+        }
+        try {
+            BufferedSource source = errorBody.source();
+            source.request(Long.MAX_VALUE);
+            return source.buffer().clone().readByteArray();
+        } catch (IOException exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Build the entry shared with the callers waiting on an error response that was not cached.
+     *
+     * @param response not successful.
+     * @return {@link CacheEntry} envelope, null if the error body can't be read.
+     */
+    @Nullable
+    public static byte[] sharedError(@NonNull Response<?> response) {
+        byte[] data = errorBytes(response);
+        return data != null ? CacheEntry.shared(data, response.raw()) : null;
+    }
+
+    /**
+     * Build the request of a call. Retrofit keeps the raw call it creates for it, so this is the
+     * request the call executes later and it is built only once.
+     *
+     * @param call not executed.
+     * @return request of the call, null if it can't be created.
+     */
+    @Nullable
+    public static Request request(@NonNull Call<?> call) {
+        try {
+            return call.request();
+        } catch (RuntimeException exc) {
+            // Thrown again when the call is executed
+            return null;
+        }
     }
 
     /**
-     * Hash the url concat the REST method used to work as cache key.
+     * Hash the url to work as cache key, normalized by {@link UrlNormalizer#DEFAULT}.
      *
      * @param url requested
      * @return hashed cache key
+     * @see CacheKey#of(HttpUrl)
      */
     public static String urlToKey(@NonNull HttpUrl url) {
-        return Hashing.sha1(url.toString(), Charset.defaultCharset());
+        return CacheKey.of(url).toString();
     }
 
 }
@@ -0,0 +1,18 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cache the responses of a {@code POST} service method that only reads data, like search or
+ * query endpoints. Requests are keyed by their url and body, so the body must be the same for
+ * the same query, and two bodies must never ask for the same response with different content.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheablePost {
+}
@@ -0,0 +1,25 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Refresh the responses cached for a service method in the background before they expire, so
+ * popular entries don't expire everywhere at once. Each cache hit close to the expiry triggers a
+ * refresh with a probability that grows as the expiry approaches and as requests get slower,
+ * see {@link XFetch}. Entries that never expire are not refreshed.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface EarlyRefresh {
+
+    /**
+     * @return how early entries are refreshed, must be positive. Values above 1 refresh earlier,
+     * values below 1 later.
+     */
+    double beta() default 1.0;
+}
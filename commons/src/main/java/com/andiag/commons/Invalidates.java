@@ -0,0 +1,33 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Remove cached responses when a {@code POST}, {@code PUT}, {@code PATCH} or {@code DELETE}
+ * service method succeeds: the response cached for the same url, every response cached under the
+ * given paths and every response with the given {@link CacheTags}.
+ * <p>
+ * Paths and tags can use the path parameters of the method,
+ * {@code @Invalidates(value = "users/{id}", tags = "user:{id}")} on
+ * {@code @PUT("users/{id}/name")}. Relative paths are resolved against the base url like
+ * Retrofit does, paths starting with {@code /} are whole url paths.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Invalidates {
+
+    /**
+     * @return path prefixes whose responses are removed, with {@code {name}} placeholders.
+     */
+    String[] value() default {};
+
+    /**
+     * @return tags whose responses are removed, with {@code {name}} placeholders.
+     */
+    String[] tags() default {};
+}
@@ -0,0 +1,28 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache the client errors of a service method, like {@code 404 Not Found} or
+ * {@code 403 Forbidden}, and replay them as error responses until they expire. Errors about
+ * authentication, timeouts or rate limits are never cached.
+ *
+ * @see com.andiag.commons.cache.CacheEntry#isCacheableError(int)
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NegativeCacheTtl {
+
+    /**
+     * @return life time of the cached errors, must be positive.
+     */
+    long value();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
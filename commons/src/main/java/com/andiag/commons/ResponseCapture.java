@@ -0,0 +1,143 @@
+package com.andiag.commons;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * {@link Interceptor} copying the bytes of a successful response body while the converter reads
+ * them, so they can be cached exactly as the server sent them instead of re-serializing the
+ * converted body.
+ * <p>
+ * Only requests registered with {@link #expect(Request)} are captured. Requests are matched by
+ * {@link Request#tag()}, which defaults to the original request and survives
+ * {@link Request#newBuilder()}, so other interceptors can freely rewrite the request.
+ */
+public final class ResponseCapture implements Interceptor {
+    private static final long DRAIN_SEGMENT = 8192;
+
+    private final Map<Object, Capture> mPending = new ConcurrentHashMap<>();
+
+    /**
+     * @param callFactory used by {@link retrofit2.Retrofit}.
+     * @return true if this interceptor is installed in the given call factory.
+     */
+    public boolean isInstalledIn(Call.Factory callFactory) {
+        if (!(callFactory instanceof OkHttpClient)) {
+            return false;
+        }
+        OkHttpClient client = (OkHttpClient) callFactory;
+        return client.interceptors().contains(this) || client.networkInterceptors().contains(this);
+    }
+
+    /**
+     * Start capturing the response body for a request. Every call must be balanced with
+     * {@link #take(Request)}.
+     *
+     * @param request exact instance that will be executed.
+     */
+    public void expect(@NonNull Request request) {
+        mPending.put(request.tag(), new Capture());
+    }
+
+    /**
+     * Stop capturing a request.
+     *
+     * @param request registered with {@link #expect(Request)}.
+     * @return the whole body as received. Null if it was not captured or not read until the end.
+     */
+    @Nullable
+    public byte[] take(@NonNull Request request) {
+        Capture capture = mPending.remove(request.tag());
+        return capture == null ? null : capture.bytes();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+
+        Capture capture = mPending.get(request.tag());
+        ResponseBody body = response.body();
+        if (capture == null || body == null || !response.isSuccessful()) {
+            return response;
+        }
+
+        ResponseBody teeBody = ResponseBody.create(body.contentType(), body.contentLength(),
+                Okio.buffer(new TeeSource(body.source(), capture)));
+        return response.newBuilder().body(teeBody).build();
+    }
+
+    private static final class Capture {
+        private final Buffer mBuffer = new Buffer();
+        private boolean mComplete;
+
+        synchronized void write(Buffer source, long offset, long byteCount) {
+            source.copyTo(mBuffer, offset, byteCount);
+        }
+
+        synchronized void complete() {
+            mComplete = true;
+        }
+
+        synchronized byte[] bytes() {
+            return mComplete ? mBuffer.readByteArray() : null;
+        }
+    }
+
+    /**
+     * Copies everything read into the {@link Capture}. Converters are not required to read
+     * until the end of the body, so the remainder is drained when the body is closed.
+     */
+    private static final class TeeSource extends ForwardingSource {
+        private final Capture mCapture;
+        private boolean mExhausted;
+
+        TeeSource(Source delegate, Capture capture) {
+            super(delegate);
+            this.mCapture = capture;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read == -1) {
+                mExhausted = true;
+                mCapture.complete();
+            } else {
+                mCapture.write(sink, sink.size() - read, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mExhausted) {
+                Buffer remainder = new Buffer();
+                try {
+                    while (read(remainder, DRAIN_SEGMENT) != -1) {
+                        remainder.clear();
+                    }
+                } catch (IOException ignored) {
+                    // Body stays incomplete and will not be used
+                }
+            }
+            super.close();
+        }
+    }
+
+}
@@ -2,11 +2,22 @@ package com.andiag.commons;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.util.Log;
 
 import com.andiag.commons.cache.ByteArraySerializer;
+import com.andiag.commons.cache.Compression;
+import com.andiag.commons.cache.DiskCache;
 import com.andiag.commons.cache.EntryCountSizeOf;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.cache.TieredCache;
+import com.andiag.commons.cache.TinyLfuCache;
 import com.iagocanalejas.dualcache.Builder;
 import com.iagocanalejas.dualcache.DualCache;
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
 
 /**
  * Created by IagoCanalejas on 09/01/2017.
@@ -14,11 +25,20 @@ import com.iagocanalejas.dualcache.DualCache;
  */
 public final class RetroCache {
 
+    private static final String TAG = "RetroCache";
     private static final String CACHE_NAME = "dualcache_retrofit";
+    private static final String LEGACY_DISK_CACHE_DIR = "dualcache" + CACHE_NAME;
+    private static final String DISK_CACHE_DIR = "retrocache";
+    private static final String DISK_PARTITIONS_DIR = "retrocache_partitions";
+    private static final String DISK_DEFAULT_PARTITION_DIR = "retrocache_default";
+    private static final Pattern PARTITION_NAME = Pattern.compile("[a-z0-9_-]{1,64}");
     public static final int REASONABLE_DISK_SIZE = 10 * 1024 * 1024; // 10 MB
     public static final int REASONABLE_MEM_ENTRIES = 50; // 50 entries
+    public static final int REASONABLE_MEM_SIZE = 4 * 1024 * 1024; // 4 MB
     public static final long REASONABLE_PERSISTENT_TIME = 60 * 60; // 1 hour
 
+    private static boolean sLegacyCacheRemoved = false;
+
     /**
      * Return a no disk cache.
      *
@@ -38,7 +58,9 @@ public final class RetroCache {
      * @param context    required for {@link com.jakewharton.disklrucache.DiskLruCache}.
      * @param appVersion used to invalidate the cache.
      * @return {@link DualCache}.
+     * @deprecated entries go to disk as {@link String}s, use {@link #getBinaryCache(Context, int)}.
      */
+    @Deprecated
     public static DualCache<String, byte[]> getDualCache(@NonNull Context context, int appVersion) {
         return new Builder<String, byte[]>(CACHE_NAME, appVersion)
                 .useReferenceInRam(REASONABLE_MEM_ENTRIES, new EntryCountSizeOf())
@@ -46,6 +68,11 @@ public final class RetroCache {
                 .build();
     }
 
+    /**
+     * @deprecated entries go to disk as {@link String}s, use
+     * {@link #getVolatileBinaryCache(Context, int)}.
+     */
+    @Deprecated
     public static DualCache<String, byte[]> getVolatileCache(@NonNull Context context,
                                                              int appVersion) {
 
@@ -56,6 +83,129 @@ public final class RetroCache {
                 .build();
     }
 
+    /**
+     * Generate a RAM and disk cache writing entries to disk as they are, compressed with
+     * {@link Compression#deflate()} if they are large enough. RAM holds up to
+     * {@link #REASONABLE_MEM_SIZE} bytes, see {@link TinyLfuCache}.
+     * <p>
+     * The first binary cache built in the process deletes the directory of
+     * {@link #getDualCache(Context, int)}, so don't mix binary caches with the deprecated ones.
+     *
+     * @param context    used to locate the cache directory.
+     * @param appVersion used to invalidate the cache.
+     * @return {@link Cache}.
+     */
+    public static Cache<String, byte[]> getBinaryCache(@NonNull Context context, int appVersion) {
+        return binaryCache(context, appVersion, new TinyLfuCache(REASONABLE_MEM_SIZE), 0);
+    }
+
+    /**
+     * Same as {@link #getPartitionedCache(Context, int, long, long, Quota...)} within
+     * {@link #REASONABLE_MEM_SIZE} bytes of RAM and {@link #REASONABLE_DISK_SIZE} bytes of disk.
+     */
+    public static PartitionedCache getPartitionedCache(@NonNull Context context, int appVersion,
+                                                       @NonNull Quota... quotas) {
+        return getPartitionedCache(context, appVersion, REASONABLE_MEM_SIZE, REASONABLE_DISK_SIZE, quotas);
+    }
+
+    /**
+     * Generate a binary cache split in partitions, each with its own RAM and disk quota and
+     * eviction. The quotas are taken from global ceilings and the default partition gets what is
+     * left, so the whole cache never grows past them. Every partition, the default one included,
+     * has its own directory, so it never shares one with {@link #getBinaryCache(Context, int)}.
+     *
+     * @param context      used to locate the cache directory.
+     * @param appVersion   used to invalidate the cache.
+     * @param maxRamBytes  RAM ceiling.
+     * @param maxDiskBytes disk ceiling.
+     * @param quotas       of the named partitions.
+     * @return {@link PartitionedCache}.
+     * @throws IllegalArgumentException if the quotas leave nothing for the default partition.
+     */
+    public static PartitionedCache getPartitionedCache(@NonNull Context context, int appVersion, long maxRamBytes,
+                                                       long maxDiskBytes, @NonNull Quota... quotas) {
+        long ramLeft = maxRamBytes;
+        long diskLeft = maxDiskBytes;
+        for (Quota quota : quotas) {
+            ramLeft -= quota.mRamBytes;
+            diskLeft -= quota.mDiskBytes;
+        }
+        if (ramLeft <= 0 || diskLeft <= 0) {
+            throw new IllegalArgumentException("Partition quotas leave no room for the default partition");
+        }
+        removeLegacyCache(context);
+
+        PartitionedCache.Builder builder = new PartitionedCache.Builder(binaryCache(
+                new File(context.getCacheDir(), DISK_DEFAULT_PARTITION_DIR), appVersion, new TinyLfuCache(ramLeft), diskLeft, 0));
+        File partitions = new File(context.getCacheDir(), DISK_PARTITIONS_DIR);
+        for (Quota quota : quotas) {
+            builder.partition(quota.mName, binaryCache(new File(partitions, quota.mName), appVersion,
+                    new TinyLfuCache(quota.mRamBytes), quota.mDiskBytes, 0));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Same as {@link #getBinaryCache(Context, int)} but entries expire after
+     * {@link #REASONABLE_PERSISTENT_TIME}.
+     */
+    public static Cache<String, byte[]> getVolatileBinaryCache(@NonNull Context context,
+                                                               int appVersion) {
+        DualCache<String, byte[]> ram = new Builder<String, byte[]>(CACHE_NAME, appVersion)
+                .useReferenceInRam(REASONABLE_MEM_ENTRIES, new EntryCountSizeOf())
+                .noDisk()
+                .useVolatileCache(REASONABLE_PERSISTENT_TIME)
+                .build();
+        return binaryCache(context, appVersion, ram, REASONABLE_PERSISTENT_TIME);
+    }
+
+    private static Cache<String, byte[]> binaryCache(Context context, int appVersion,
+                                                     Cache<String, byte[]> ram,
+                                                     long persistenceSeconds) {
+        removeLegacyCache(context);
+        return binaryCache(new File(context.getCacheDir(), DISK_CACHE_DIR), appVersion, ram,
+                REASONABLE_DISK_SIZE, persistenceSeconds);
+    }
+
+    private static Cache<String, byte[]> binaryCache(File directory, int appVersion,
+                                                     Cache<String, byte[]> ram, long diskBytes,
+                                                     long persistenceSeconds) {
+        try {
+            return new TieredCache(ram, new DiskCache(directory, appVersion,
+                    diskBytes, persistenceSeconds, Compression.deflate()));
+        } catch (IOException exc) {
+            Log.e(TAG, "Unable to open disk cache, using RAM only", exc);
+            return ram;
+        }
+    }
+
+    /**
+     * Delete the disk entries of {@link #getDualCache(Context, int)} and
+     * {@link #getVolatileCache(Context, int)}. Binary caches use their own directories, so
+     * nothing would ever read or evict them.
+     */
+    private static synchronized void removeLegacyCache(Context context) {
+        if (sLegacyCacheRemoved) {
+            return;
+        }
+        sLegacyCacheRemoved = true;
+        // Same directory the dualcache Builder opens its DiskLruCache in
+        File directory = context.getDir(LEGACY_DISK_CACHE_DIR, Context.MODE_PRIVATE);
+        if (!delete(directory)) {
+            Log.w(TAG, "Unable to delete " + directory);
+        }
+    }
+
+    private static boolean delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
     /**
      * Generate a non-configure builder for the cache.
      *
@@ -66,4 +216,32 @@ public final class RetroCache {
         return new Builder<>(CACHE_NAME, appVersion);
     }
 
+    /**
+     * RAM and disk quota of a partition of {@link #getPartitionedCache(Context, int, Quota...)}.
+     */
+    public static final class Quota {
+        private final String mName;
+        private final long mRamBytes;
+        private final long mDiskBytes;
+
+        /**
+         * @param name      of the partition, also its directory: lowercase letters, digits,
+         *                  {@code _} and {@code -}.
+         * @param ramBytes  RAM quota.
+         * @param diskBytes disk quota.
+         * @throws IllegalArgumentException if the name is invalid or a quota is not positive.
+         */
+        public Quota(@NonNull String name, long ramBytes, long diskBytes) {
+            if (!PARTITION_NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("Invalid partition name: " + name);
+            }
+            if (ramBytes <= 0 || diskBytes <= 0) {
+                throw new IllegalArgumentException("Partition quotas must be positive: " + name);
+            }
+            this.mName = name;
+            this.mRamBytes = ramBytes;
+            this.mDiskBytes = diskBytes;
+        }
+    }
+
 }
@@ -0,0 +1,256 @@
+package com.andiag.commons;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.andiag.commons.cache.CacheEntry;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import retrofit2.Call;
+
+/**
+ * Registry of the network requests in flight, so concurrent cache misses for the same key share a
+ * single request.
+ * <p>
+ * The first caller to {@link #join(String, Listener)} a key becomes the leader. It executes the
+ * request and reports the outcome with {@link Member#complete(byte[])} or
+ * {@link Member#fail(Throwable)}. Callers joining before that are followers and are notified
+ * through their {@link Listener}. The shared bytes are always a {@link CacheEntry} envelope, so
+ * followers keep the validators and expiry of the entry. Followers decode their own copy of them,
+ * so bodies are never shared between callers.
+ * <p>
+ * Cancelling a member only detaches it. The shared request is cancelled once every member left.
+ */
+public final class SingleFlight {
+
+    /**
+     * Receives the outcome of the shared request. Called once, on the leader thread or on the
+     * thread cancelling the member.
+     */
+    public interface Listener {
+
+        /**
+         * The leader got a response. Successful responses are shared as they were cached, error
+         * responses as an entry for which {@link CacheEntry#isError()} holds, so followers replay
+         * them instead of repeating the request.
+         *
+         * @param stored {@link CacheEntry} envelope.
+         */
+        void onShared(@NonNull byte[] stored);
+
+        /**
+         * The leader response can't be shared (a successful response that is not cacheable or an
+         * error body that can't be read). The follower must execute its own request.
+         */
+        void onUnavailable();
+
+        /**
+         * The leader request failed or this member was cancelled.
+         */
+        void onFailure(@NonNull Throwable t);
+    }
+
+    private final Map<String, Flight> mFlights = new HashMap<>();
+
+    /**
+     * Join the request in flight for a key, starting a new one if there is none.
+     *
+     * @param key      cache key.
+     * @param listener notified when the request finishes. Ignored for the leader.
+     * @return {@link Member} handle.
+     */
+    public synchronized Member join(@NonNull String key, @NonNull Listener listener) {
+        Flight flight = mFlights.get(key);
+        boolean leader = flight == null;
+        if (leader) {
+            flight = new Flight(key);
+            mFlights.put(key, flight);
+        }
+        Member member = new Member(flight, listener, leader);
+        flight.mMembers.add(member);
+        return member;
+    }
+
+    private static final class Flight {
+        private final String mKey;
+        private final List<Member> mMembers = new ArrayList<>(2);
+        private Call<?> mCall;
+
+        Flight(String key) {
+            this.mKey = key;
+        }
+    }
+
+    public final class Member {
+        private final Flight mFlight;
+        private final Listener mListener;
+        private final boolean mLeader;
+        private boolean mDone;
+
+        Member(Flight flight, Listener listener, boolean leader) {
+            this.mFlight = flight;
+            this.mListener = listener;
+            this.mLeader = leader;
+        }
+
+        /**
+         * @return true if the caller must execute the request and report its outcome.
+         */
+        public boolean isLeader() {
+            return mLeader;
+        }
+
+        /**
+         * Register the leader request, cancelled when every member left.
+         */
+        public void attach(@NonNull Call<?> call) {
+            boolean abandoned;
+            synchronized (SingleFlight.this) {
+                mFlight.mCall = call;
+                abandoned = mFlight.mMembers.isEmpty();
+            }
+            if (abandoned) {
+                call.cancel();
+            }
+        }
+
+        /**
+         * Finish the shared request.
+         *
+         * @param stored {@link CacheEntry} envelope of the response, null if it can't be shared.
+         */
+        public void complete(@Nullable byte[] stored) {
+            for (Member member : finish()) {
+                if (stored != null) {
+                    member.mListener.onShared(stored);
+                } else {
+                    member.mListener.onUnavailable();
+                }
+            }
+        }
+
+        /**
+         * Finish the shared request with an error.
+         */
+        public void fail(@NonNull Throwable t) {
+            for (Member member : finish()) {
+                member.mListener.onFailure(t);
+            }
+        }
+
+        /**
+         * Leave the request. Followers are notified with an {@link IOException} right away.
+         *
+         * @return false if the shared request is kept alive for other members.
+         */
+        public boolean cancel() {
+            Call<?> abandoned = null;
+            boolean kept;
+            synchronized (SingleFlight.this) {
+                if (mDone) {
+                    return true;
+                }
+                mDone = true;
+                mFlight.mMembers.remove(this);
+                kept = !mFlight.mMembers.isEmpty();
+                if (!kept) {
+                    // New callers must not join a request about to be cancelled
+                    if (mFlights.get(mFlight.mKey) == mFlight) {
+                        mFlights.remove(mFlight.mKey);
+                    }
+                    abandoned = mFlight.mCall;
+                }
+            }
+            if (abandoned != null) {
+                abandoned.cancel();
+            }
+            if (!mLeader) {
+                mListener.onFailure(new IOException("Canceled"));
+            }
+            return !kept;
+        }
+
+        private List<Member> finish() {
+            List<Member> followers = new ArrayList<>();
+            synchronized (SingleFlight.this) {
+                if (mFlights.get(mFlight.mKey) == mFlight) {
+                    mFlights.remove(mFlight.mKey);
+                }
+                for (Member member : mFlight.mMembers) {
+                    if (!member.mDone) {
+                        member.mDone = true;
+                        if (!member.mLeader) {
+                            followers.add(member);
+                        }
+                    }
+                }
+                mFlight.mMembers.clear();
+            }
+            return followers;
+        }
+    }
+
+    /**
+     * {@link Listener} for synchronous followers.
+     */
+    public static final class BlockingListener implements Listener {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private byte[] mStored;
+        private Throwable mError;
+
+        @Override
+        public void onShared(@NonNull byte[] stored) {
+            mStored = stored;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onUnavailable() {
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onFailure(@NonNull Throwable t) {
+            mError = t;
+            mLatch.countDown();
+        }
+
+        /**
+         * Block until the leader finishes.
+         *
+         * @return shared {@link CacheEntry} envelope, null if the follower must execute its own
+         *         request.
+         * @throws IOException if the leader failed or the member was cancelled.
+         */
+        @Nullable
+        public byte[] await() throws IOException {
+            try {
+                mLatch.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (mError instanceof IOException) {
+                throw (IOException) mError;
+            }
+            if (mError instanceof RuntimeException) {
+                throw (RuntimeException) mError;
+            }
+            if (mError instanceof Error) {
+                throw (Error) mError;
+            }
+            if (mError != null) {
+                throw new IOException(mError);
+            }
+            return mStored;
+        }
+    }
+
+}
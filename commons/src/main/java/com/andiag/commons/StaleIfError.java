@@ -0,0 +1,26 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serve the expired response of a service method if the network request fails with an
+ * {@link java.io.IOException} or a {@code 5xx}, as long as it expired less than the given time
+ * ago. Such responses carry a {@code Warning: 110} header, see {@link CacheUtils#isStale}.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StaleIfError {
+
+    /**
+     * @return time after expiring during which a response can still be served, must be positive.
+     */
+    long value();
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
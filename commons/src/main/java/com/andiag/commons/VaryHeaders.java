@@ -0,0 +1,24 @@
+package com.andiag.commons;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Request headers the responses of a service method depend on, like {@code Accept-Language} or a
+ * tenant header. Their values are part of the cache key, so each combination is cached on its
+ * own. Only headers set on the Retrofit request, with {@code @Header} or {@code @Headers}, are
+ * seen, not the ones added later by OkHttp interceptors.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface VaryHeaders {
+
+    /**
+     * @return names of the headers, case insensitive.
+     */
+    String[] value();
+}
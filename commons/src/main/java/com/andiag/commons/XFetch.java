@@ -0,0 +1,147 @@
+package com.andiag.commons;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.andiag.commons.cache.CacheEntry;
+import com.andiag.commons.cache.CacheIndex;
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Probabilistic early refresh of the entries of an {@link EarlyRefresh} service method, from
+ * "Optimal Probabilistic Cache Stampede Prevention" (Vattani et al.).
+ * <p>
+ * A fresh entry is refreshed when {@code now - delta * beta * ln(random) >= expiresAt}, where
+ * {@code delta} is the average time the server took to answer this method. Hits far from the
+ * expiry almost never refresh, hits right before it almost always do, and slow requests start
+ * earlier. Clients sharing a popular entry spread their refreshes instead of all missing when it
+ * expires.
+ * <p>
+ * Refreshes are conditional requests sent straight to the {@link Call.Factory}, in the
+ * background, one at a time per key. Failures keep the cached entry.
+ */
+public final class XFetch {
+    private static final Random RANDOM = new Random();
+
+    private final double mBeta;
+    private final Call.Factory mCallFactory;
+    private final Cache<String, byte[]> mCache;
+    private final CacheIndex.Writer mIndexWriter;
+    private final long mTtlMillis;
+    private final Set<String> mRefreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long mDeltaMillis;
+
+    private XFetch(double beta, Call.Factory callFactory, Cache<String, byte[]> cache,
+                   CacheIndex.Writer indexWriter, long ttlMillis) {
+        this.mBeta = beta;
+        this.mCallFactory = callFactory;
+        this.mCache = cache;
+        this.mIndexWriter = indexWriter;
+        this.mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @param annotations of the service method.
+     * @param ttlMillis   {@link CacheTtl} of the service method, 0 if there is none.
+     * @return {@link XFetch}, null if the method is not annotated with {@link EarlyRefresh}.
+     * @throws IllegalArgumentException if beta is not positive.
+     */
+    @Nullable
+    public static XFetch create(Annotation[] annotations, @NonNull Call.Factory callFactory,
+                                @NonNull Cache<String, byte[]> cache, @NonNull CacheIndex.Writer indexWriter,
+                                long ttlMillis) {
+        EarlyRefresh earlyRefresh = CacheUtils.findAnnotation(annotations, EarlyRefresh.class);
+        if (earlyRefresh == null) {
+            return null;
+        }
+        if (!(earlyRefresh.beta() > 0)) {
+            throw new IllegalArgumentException("@EarlyRefresh beta must be positive: " + earlyRefresh.beta());
+        }
+        return new XFetch(earlyRefresh.beta(), callFactory, cache, indexWriter, ttlMillis);
+    }
+
+    /**
+     * Record how long the server took to send a response of this method.
+     */
+    public void record(@NonNull Response rawResponse) {
+        long latency = rawResponse.receivedResponseAtMillis() - rawResponse.sentRequestAtMillis();
+        if (latency < 0) {
+            return;
+        }
+        long delta = mDeltaMillis;
+        // Moving average, races only lose a sample
+        mDeltaMillis = delta == 0 ? latency : (7 * delta + latency) / 8;
+    }
+
+    /**
+     * Start a background refresh of a fresh entry just served, if it is due.
+     *
+     * @param request the entry was served for.
+     * @param key     of the entry.
+     * @param entry   served.
+     * @return true if a refresh was started.
+     */
+    public boolean refreshIfDue(@NonNull Request request, @NonNull final String key, @NonNull final CacheEntry entry) {
+        if (entry.isError() || entry.expiresAt() == CacheEntry.NEVER || !isDue(entry.expiresAt())
+                || !mRefreshing.add(key)) {
+            return false;
+        }
+        mCallFactory.newCall(entry.conditional(request)).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response rawResponse) throws IOException {
+                try {
+                    store(key, entry, rawResponse);
+                } finally {
+                    rawResponse.close();
+                    mRefreshing.remove(key);
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException exc) {
+                mRefreshing.remove(key);
+            }
+        });
+        return true;
+    }
+
+    private boolean isDue(long expiresAt) {
+        long delta = mDeltaMillis;
+        if (delta <= 0) {
+            // Nothing fetched yet
+            return false;
+        }
+        double gap = -delta * mBeta * Math.log(1 - RANDOM.nextDouble());
+        return System.currentTimeMillis() + gap >= expiresAt;
+    }
+
+    private void store(String key, CacheEntry entry, Response rawResponse) throws IOException {
+        record(rawResponse);
+        byte[] stored;
+        if (rawResponse.code() == 304) {
+            stored = entry.revalidated(rawResponse, mTtlMillis);
+        } else if (rawResponse.isSuccessful() && rawResponse.code() != 204 && rawResponse.code() != 205) {
+            byte[] data = rawResponse.body().bytes();
+            stored = entry.hasBody(data)
+                    ? entry.revalidated(rawResponse, mTtlMillis) : CacheEntry.encode(data, rawResponse, mTtlMillis);
+        } else {
+            // Keep the cached response
+            return;
+        }
+        mCache.put(key, stored);
+        mIndexWriter.put(key, rawResponse.request().url());
+    }
+
+}
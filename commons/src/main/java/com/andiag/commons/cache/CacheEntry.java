@@ -0,0 +1,436 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+
+import okhttp3.CacheControl;
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Cached response body with the HTTP metadata needed to revalidate it: its {@code ETag} and
+ * {@code Last-Modified} validators and the end of its freshness lifetime, computed from
+ * {@code Cache-Control: max-age}, {@code Expires} and {@code Age} unless the service method
+ * declares its own {@link com.andiag.commons.CacheTtl}. Responses with validators but no
+ * explicit lifetime get the heuristic one of RFC 7234, 10% of the time since they were last
+ * modified, or none at all with only an {@code ETag}. The lifetime is stored too, so a
+ * {@code 304 Not Modified} without freshness headers makes the entry fresh again from the time it
+ * was received. Error responses cached by {@link com.andiag.commons.NegativeCacheTtl} keep their
+ * status code and content type.
+ * <p>
+ * Entries are stored as a small envelope followed by the body. Successful responses without any
+ * of those headers are stored as the bare body, exactly like before, and bare bodies read back as
+ * entries that never expire. {@code Cache-Control: no-store} is not honoured because this cache
+ * is the application's own copy of the data, {@code no-cache} makes entries expire right away.
+ */
+public final class CacheEntry {
+    public static final long NEVER = 0;
+    public static final String STALE_WARNING_CODE = "110";
+
+    private static final int MAGIC = 0x00524345; // "\0RCE", never the start of a text body
+    private static final int VERSION = 3;
+    private static final long NO_LIFETIME = -1;
+    private static final int HEURISTIC_PERCENT = 10;
+    private static final int HTTP_OK = 200;
+    private static final String STALE_WARNING = STALE_WARNING_CODE + " - \"Response is Stale\"";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mStored;
+    private final int mBodyOffset;
+    private final long mExpiresAt;
+    private final long mLifetime;
+    private final int mCode;
+    private final String mEtag;
+    private final String mLastModified;
+    private final String mContentType;
+
+    private CacheEntry(byte[] stored, int bodyOffset, long expiresAt, long lifetime, int code, String etag,
+                       String lastModified, String contentType) {
+        this.mStored = stored;
+        this.mBodyOffset = bodyOffset;
+        this.mExpiresAt = expiresAt;
+        this.mLifetime = lifetime;
+        this.mCode = code;
+        this.mEtag = etag;
+        this.mLastModified = lastModified;
+        this.mContentType = contentType;
+    }
+
+    /**
+     * Read the envelope of a stored entry, without copying the body.
+     *
+     * @param stored bytes read from the cache.
+     * @return {@link CacheEntry}, never expiring if {@code stored} is a bare body. Null if it was
+     * written with another envelope version, it must be treated as a miss.
+     */
+    @Nullable
+    public static CacheEntry parse(@NonNull byte[] stored) {
+        ByteBuffer buffer = ByteBuffer.wrap(stored);
+        if (stored.length < 5 || buffer.getInt() != MAGIC) {
+            return new CacheEntry(stored, 0, NEVER, NO_LIFETIME, HTTP_OK, null, null, null);
+        }
+        try {
+            if (buffer.get() != VERSION) {
+                return null;
+            }
+            long expiresAt = buffer.getLong();
+            long lifetime = buffer.getLong();
+            int code = buffer.getShort();
+            String etag = readString(buffer);
+            String lastModified = readString(buffer);
+            String contentType = readString(buffer);
+            return new CacheEntry(stored, buffer.position(), expiresAt, lifetime, code, etag, lastModified,
+                    contentType);
+        } catch (BufferUnderflowException | IllegalArgumentException exc) {
+            // A bare body starting with the magic number
+            return new CacheEntry(stored, 0, NEVER, NO_LIFETIME, HTTP_OK, null, null, null);
+        }
+    }
+
+    /**
+     * Build the bytes to store for a network response.
+     *
+     * @param body     raw response body.
+     * @param response network response the body belongs to.
+     * @return {@code body} itself if the response carries no caching headers.
+     */
+    public static byte[] encode(@NonNull byte[] body, @NonNull Response response) {
+        return encode(body, response, 0);
+    }
+
+    /**
+     * Build the bytes to store for a network response.
+     *
+     * @param body      raw response body.
+     * @param response  network response the body belongs to.
+     * @param ttlMillis life time of the entry, 0 to use the one declared by the response. Required
+     *                  for error responses.
+     * @return {@code body} itself if there is no metadata to store.
+     */
+    public static byte[] encode(@NonNull byte[] body, @NonNull Response response, long ttlMillis) {
+        if (!response.isSuccessful()) {
+            if (ttlMillis <= 0) {
+                throw new IllegalArgumentException("Error responses need a life time");
+            }
+            return encode(body, 0, expiresAt(response, ttlMillis, ttlMillis), ttlMillis, response.code(), null, null,
+                    contentType(response));
+        }
+        long lifetime = ttlMillis > 0 ? ttlMillis : lifetime(response);
+        return encode(body, 0, expiresAt(response, ttlMillis, lifetime), lifetime, response.code(),
+                response.header("ETag"), response.header("Last-Modified"), null);
+    }
+
+    /**
+     * Build the bytes to share an error response with concurrent callers without storing it.
+     *
+     * @param body     raw error body.
+     * @param response network response the body belongs to.
+     * @return an already expired error entry.
+     */
+    public static byte[] shared(@NonNull byte[] body, @NonNull Response response) {
+        if (response.isSuccessful()) {
+            throw new IllegalArgumentException("Only error responses are shared unstored");
+        }
+        return encode(body, 0, 1, NO_LIFETIME, response.code(), null, null, contentType(response));
+    }
+
+    private static String contentType(Response response) {
+        ResponseBody responseBody = response.body();
+        MediaType contentType = responseBody != null ? responseBody.contentType() : null;
+        return contentType != null ? contentType.toString() : null;
+    }
+
+    /**
+     * @param src        holding the body from {@code bodyOffset} to its end.
+     * @param bodyOffset start of the body in {@code src}.
+     * @param lifetime   freshness lifetime the expiry was computed from, {@link #NO_LIFETIME} if
+     *                   there is none.
+     */
+    private static byte[] encode(byte[] src, int bodyOffset, long expiresAt, long lifetime, int code, String etag,
+                                 String lastModified, String contentType) {
+        int bodyLength = src.length - bodyOffset;
+        if (expiresAt == NEVER && code == HTTP_OK && etag == null && lastModified == null) {
+            return bodyOffset == 0 ? src : Arrays.copyOfRange(src, bodyOffset, src.length);
+        }
+        byte[] etagBytes = bytes(etag);
+        byte[] lastModifiedBytes = bytes(lastModified);
+        byte[] contentTypeBytes = bytes(contentType);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 8 + 8 + 2
+                + 2 + etagBytes.length + 2 + lastModifiedBytes.length + 2 + contentTypeBytes.length
+                + bodyLength);
+        buffer.putInt(MAGIC).put((byte) VERSION).putLong(expiresAt).putLong(lifetime).putShort((short) code)
+                .putShort((short) etagBytes.length).put(etagBytes)
+                .putShort((short) lastModifiedBytes.length).put(lastModifiedBytes)
+                .putShort((short) contentTypeBytes.length).put(contentTypeBytes)
+                .put(src, bodyOffset, bodyLength);
+        return buffer.array();
+    }
+
+    /**
+     * @param ttlMillis life time declared by the service method, 0 if there is none.
+     * @param lifetime  freshness lifetime of the response, {@link #NO_LIFETIME} if there is none.
+     * @return end of the freshness lifetime of a response, {@link #NEVER} if there is none.
+     */
+    private static long expiresAt(Response response, long ttlMillis, long lifetime) {
+        long servedAt = servedAt(response);
+        if (ttlMillis > 0) {
+            return servedAt + ttlMillis;
+        }
+        if (lifetime == NO_LIFETIME) {
+            return NEVER;
+        }
+        // Keep expired entries distinguishable from NEVER
+        return Math.max(servedAt + lifetime - ageSeconds(response.headers()) * 1000L, 1);
+    }
+
+    private static long servedAt(Response response) {
+        long servedAt = response.receivedResponseAtMillis();
+        return servedAt > 0 ? servedAt : System.currentTimeMillis();
+    }
+
+    /**
+     * @return freshness lifetime of a response, the heuristic one if it has validators but
+     * declares none. {@link #NO_LIFETIME} if it has neither.
+     */
+    private static long lifetime(Response response) {
+        long lifetime = declaredLifetime(response);
+        if (lifetime != NO_LIFETIME || response.header("ETag") == null && response.header("Last-Modified") == null) {
+            return lifetime;
+        }
+        Headers headers = response.headers();
+        Date lastModified = headers.getDate("Last-Modified");
+        if (lastModified == null) {
+            // Revalidated on every read
+            return 0;
+        }
+        Date date = headers.getDate("Date");
+        long servedAt = date != null ? date.getTime() : servedAt(response);
+        return Math.max(servedAt - lastModified.getTime(), 0) * HEURISTIC_PERCENT / 100;
+    }
+
+    /**
+     * @return freshness lifetime set by {@code Cache-Control} or {@code Expires},
+     * {@link #NO_LIFETIME} if there is none.
+     */
+    private static long declaredLifetime(Response response) {
+        CacheControl cacheControl = response.cacheControl();
+        Headers headers = response.headers();
+        if (cacheControl.noCache()) {
+            return 0;
+        }
+        if (cacheControl.maxAgeSeconds() != -1) {
+            return cacheControl.maxAgeSeconds() * 1000L;
+        }
+        Date expires = headers.getDate("Expires");
+        if (expires == null) {
+            return NO_LIFETIME;
+        }
+        Date date = headers.getDate("Date");
+        return Math.max(expires.getTime() - (date != null ? date.getTime() : servedAt(response)), 0);
+    }
+
+    private static long ageSeconds(Headers headers) {
+        String age = headers.get("Age");
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(age.trim()), 0);
+        } catch (NumberFormatException exc) {
+            return 0;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(UTF_8) : new byte[0];
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        if (length == 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Truncated entry");
+        }
+        String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Error responses worth caching: client errors that are not about authentication, timing or
+     * rate limits, so the same request is going to fail again.
+     *
+     * @param code HTTP status code.
+     */
+    public static boolean isCacheableError(int code) {
+        return code >= 400 && code < 500 && code != 401 && code != 407 && code != 408 && code != 429;
+    }
+
+    /**
+     * @return true if the entry is within its freshness lifetime.
+     */
+    public boolean isFresh() {
+        return mExpiresAt == NEVER || mExpiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * @return end of the freshness lifetime, {@link #NEVER} if the entry never expires.
+     */
+    public long expiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * @param staleMillis time after expiring during which the entry can still be served.
+     * @return true if this is an expired successful response that can be served while the
+     * network fails.
+     */
+    public boolean isUsableIfError(long staleMillis) {
+        return !isError() && mExpiresAt != NEVER && System.currentTimeMillis() < mExpiresAt + staleMillis;
+    }
+
+    /**
+     * @return true if the entry is a cached error response, replayed with {@link #error(Request)}.
+     */
+    public boolean isError() {
+        return mCode < 200 || mCode >= 300;
+    }
+
+    /**
+     * @return true if the entry can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+        return mEtag != null || mLastModified != null;
+    }
+
+    /**
+     * @return bytes read from the cache, envelope included.
+     */
+    public byte[] stored() {
+        return mStored;
+    }
+
+    /**
+     * @return the response body, read in place from the stored bytes instead of copying it out of
+     * the envelope.
+     */
+    public ResponseBody body() {
+        int length = mStored.length - mBodyOffset;
+        BufferedSource source = Okio.buffer(Okio.source(new ByteArrayInputStream(mStored, mBodyOffset, length)));
+        return ResponseBody.create(mContentType != null ? MediaType.parse(mContentType) : null, length, source);
+    }
+
+    /**
+     * @return true if {@code body} is the body of this entry.
+     */
+    public boolean hasBody(@Nullable byte[] body) {
+        return body != null && sameBytes(body, 0, mStored, mBodyOffset);
+    }
+
+    /**
+     * @return true if {@code entry} has the same body as this entry.
+     */
+    public boolean hasBody(@NonNull CacheEntry entry) {
+        return sameBytes(entry.mStored, entry.mBodyOffset, mStored, mBodyOffset);
+    }
+
+    private static boolean sameBytes(byte[] a, int offsetA, byte[] b, int offsetB) {
+        int length = a.length - offsetA;
+        if (length != b.length - offsetB) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[offsetA + i] != b[offsetB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replay a cached error response.
+     *
+     * @param request the response is for.
+     * @return error {@link retrofit2.Response} with the cached status code and body.
+     */
+    public <T> retrofit2.Response<T> error(@NonNull Request request) {
+        ResponseBody body = body();
+        Response rawResponse = new Response.Builder()
+                .code(mCode)
+                .message("Cached error")
+                .protocol(Protocol.HTTP_1_1)
+                .request(request)
+                .build();
+        return retrofit2.Response.error(body, rawResponse);
+    }
+
+    /**
+     * Serve an expired entry, marked with a {@code Warning: 110} header.
+     *
+     * @param body    decoded from this entry.
+     * @param request the response is for.
+     */
+    public <T> retrofit2.Response<T> stale(T body, @NonNull Request request) {
+        Response rawResponse = new Response.Builder()
+                .code(mCode)
+                .message("OK")
+                .protocol(Protocol.HTTP_1_1)
+                .request(request)
+                .header("Warning", STALE_WARNING)
+                .build();
+        return retrofit2.Response.success(body, rawResponse);
+    }
+
+    /**
+     * Add the validators of this entry to a request.
+     *
+     * @return request asking the server to answer {@code 304 Not Modified} if the entry is
+     * still valid.
+     */
+    public Request conditional(@NonNull Request request) {
+        Request.Builder builder = request.newBuilder();
+        if (mEtag != null) {
+            builder.header("If-None-Match", mEtag);
+        }
+        if (mLastModified != null) {
+            builder.header("If-Modified-Since", mLastModified);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build the bytes to store after a {@code 304 Not Modified}, keeping the body and updating
+     * the metadata with the headers of the response. Metadata missing from it is kept. Like
+     * RFC 7234 section 4.3.4 asks, the freshness lifetime is applied again from the time the
+     * {@code 304} was received, the stored one if the response declares none.
+     *
+     * @param notModified {@code 304} response to a {@link #conditional(Request)} request.
+     * @param ttlMillis   life time of the entry, 0 to use the one declared by the response.
+     */
+    public byte[] revalidated(@NonNull Response notModified, long ttlMillis) {
+        long lifetime = ttlMillis > 0 ? ttlMillis : declaredLifetime(notModified);
+        if (lifetime == NO_LIFETIME) {
+            lifetime = mLifetime;
+        }
+        String etag = notModified.header("ETag");
+        String lastModified = notModified.header("Last-Modified");
+        return encode(mStored, mBodyOffset, expiresAt(notModified, ttlMillis, lifetime), lifetime, mCode,
+                etag != null ? etag : mEtag, lastModified != null ? lastModified : mLastModified, mContentType);
+    }
+
+}
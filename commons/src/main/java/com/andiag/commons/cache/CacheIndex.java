@@ -0,0 +1,424 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CacheTags;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.Invalidates;
+import com.andiag.commons.key.KeyComposer;
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import okhttp3.HttpUrl;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.HTTP;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+
+/**
+ * Index of the cached entries by url path and {@link CacheTags}, since cache keys are hashes
+ * that can't be matched. Invalidations, explicit or declared with {@link Invalidates}, walk the
+ * entries they match only, whatever the number of entries cached.
+ * <p>
+ * Entries are indexed as they are written, the index is best-effort. Entries written before the
+ * process started are not indexed, and the index forgets its oldest records when it is full
+ * without touching the cache, so those entries are left to expire or to be evicted by the
+ * cache. Entries evicted by the cache stay indexed until they are invalidated, which costs a
+ * removal of a missing key.
+ * <p>
+ * Entries keyed by more than their url, like {@link com.andiag.commons.VaryHeaders} variants,
+ * are also indexed under the key of their url so removing the url removes all of them.
+ */
+public final class CacheIndex {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final Cache<String, byte[]> mCache;
+    private final int mMaxEntries;
+    private final Node mRoot = new Node(null, null);
+    private final Map<String, Record> mRecords = new LinkedHashMap<>();
+    private final Map<String, Set<String>> mTags = new HashMap<>();
+    private final Map<String, Set<String>> mVariants = new HashMap<>();
+
+    public CacheIndex(@NonNull Cache<String, byte[]> cache) {
+        this(cache, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param cache      entries are removed from.
+     * @param maxEntries number of entries indexed, the oldest records are forgotten past it.
+     */
+    public CacheIndex(@NonNull Cache<String, byte[]> cache, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        this.mCache = cache;
+        this.mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Index the entries of a service method.
+     *
+     * @param annotations of the service method.
+     * @param keys        of the service method.
+     * @return {@link Writer} to call when the method caches an entry or succeeds.
+     * @throws IllegalArgumentException if a {@link CacheTags} or {@link Invalidates} placeholder
+     *                                  is not a path parameter of the method, or if a
+     *                                  {@code GET} method declares {@link Invalidates}.
+     */
+    public Writer writer(@NonNull Annotation[] annotations, @NonNull KeyComposer keys) {
+        CacheTags tags = CacheUtils.findAnnotation(annotations, CacheTags.class);
+        Invalidates invalidates = CacheUtils.findAnnotation(annotations, Invalidates.class);
+        String relativeUrl = relativeUrl(annotations);
+        if (invalidates != null && isGet(annotations)) {
+            throw new IllegalArgumentException("@Invalidates can't be used on GET methods: " + relativeUrl);
+        }
+        PathTemplate template = new PathTemplate(relativeUrl);
+        String[] tagged = tags != null ? tags.value() : new String[0];
+        checkPlaceholders("@CacheTags", tagged, template, relativeUrl);
+        if (invalidates == null) {
+            return new Writer(keys, template, tagged, null, null);
+        }
+        checkPlaceholders("@Invalidates", invalidates.value(), template, relativeUrl);
+        checkPlaceholders("@Invalidates", invalidates.tags(), template, relativeUrl);
+        return new Writer(keys, template, tagged, invalidates.value(), invalidates.tags());
+    }
+
+    private static void checkPlaceholders(String annotation, String[] values, PathTemplate template,
+                                          String relativeUrl) {
+        for (String value : values) {
+            Matcher matcher = PathTemplate.PARAMETER.matcher(value);
+            while (matcher.find()) {
+                if (!template.hasParameter(matcher.group(1))) {
+                    throw new IllegalArgumentException(annotation + " placeholder " + matcher.group()
+                            + " is not a path parameter of " + relativeUrl);
+                }
+            }
+        }
+    }
+
+    private static boolean isGet(Annotation[] annotations) {
+        HTTP http = CacheUtils.findAnnotation(annotations, HTTP.class);
+        return CacheUtils.findAnnotation(annotations, GET.class) != null
+                || http != null && http.method().equals("GET");
+    }
+
+    private static String relativeUrl(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            if (annotation instanceof GET) {
+                return ((GET) annotation).value();
+            } else if (annotation instanceof POST) {
+                return ((POST) annotation).value();
+            } else if (annotation instanceof PUT) {
+                return ((PUT) annotation).value();
+            } else if (annotation instanceof PATCH) {
+                return ((PATCH) annotation).value();
+            } else if (annotation instanceof DELETE) {
+                return ((DELETE) annotation).value();
+            } else if (annotation instanceof HTTP) {
+                return ((HTTP) annotation).path();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Remove every entry whose url path starts with the given segments, {@code "/users/42"}
+     * matches {@code /users/42} and {@code /users/42/repos} but not {@code /users/420}. The path
+     * is the whole path of the url, including the one of the base url.
+     *
+     * @param path decoded path prefix.
+     * @return keys of the removed entries.
+     */
+    public List<String> invalidatePrefix(@NonNull String path) {
+        List<String> keys = new ArrayList<>();
+        synchronized (this) {
+            Node node = mRoot;
+            for (String segment : path.split("/")) {
+                if (!segment.isEmpty()) {
+                    node = node.mChildren.get(segment);
+                    if (node == null) {
+                        return keys;
+                    }
+                }
+            }
+            collect(node, keys);
+            for (String key : keys) {
+                unindex(mRecords.remove(key));
+            }
+        }
+        removeFromCache(keys);
+        return keys;
+    }
+
+    /**
+     * Remove every entry with the given tag.
+     *
+     * @param tag with its placeholders resolved, {@code "user:42"}.
+     * @return keys of the removed entries.
+     */
+    public List<String> invalidateTag(@NonNull String tag) {
+        List<String> keys;
+        synchronized (this) {
+            Set<String> tagged = mTags.get(tag);
+            if (tagged == null) {
+                return Collections.emptyList();
+            }
+            keys = new ArrayList<>(tagged);
+            for (String key : keys) {
+                unindex(mRecords.remove(key));
+            }
+        }
+        removeFromCache(keys);
+        return keys;
+    }
+
+    /**
+     * Forget a removed entry.
+     */
+    public synchronized void remove(@NonNull String key) {
+        unindex(mRecords.remove(key));
+    }
+
+    /**
+     * @return number of entries indexed.
+     */
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    private void removeFromCache(List<String> keys) {
+        for (String key : keys) {
+            mCache.remove(key);
+        }
+    }
+
+    private synchronized List<String> removeVariants(String urlKey) {
+        Set<String> variants = mVariants.get(urlKey);
+        if (variants == null) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(variants);
+        for (String key : keys) {
+            unindex(mRecords.remove(key));
+        }
+        return keys;
+    }
+
+    private synchronized void index(String key, String urlKey, List<String> segments, List<String> tags) {
+        unindex(mRecords.remove(key));
+        Node node = mRoot;
+        for (String segment : segments) {
+            Node child = node.mChildren.get(segment);
+            if (child == null) {
+                child = new Node(node, segment);
+                node.mChildren.put(segment, child);
+            }
+            node = child;
+        }
+        node.mKeys.add(key);
+        for (String tag : tags) {
+            Set<String> tagged = mTags.get(tag);
+            if (tagged == null) {
+                tagged = new HashSet<>();
+                mTags.put(tag, tagged);
+            }
+            tagged.add(key);
+        }
+        if (urlKey != null) {
+            Set<String> variants = mVariants.get(urlKey);
+            if (variants == null) {
+                variants = new HashSet<>();
+                mVariants.put(urlKey, variants);
+            }
+            variants.add(key);
+        }
+        mRecords.put(key, new Record(key, urlKey, node, tags));
+
+        if (mRecords.size() > mMaxEntries) {
+            // Forget the oldest record only, its entry may still be a valid response
+            Iterator<Record> eldest = mRecords.values().iterator();
+            Record record = eldest.next();
+            eldest.remove();
+            unindex(record);
+        }
+    }
+
+    private void unindex(Record record) {
+        if (record == null) {
+            return;
+        }
+        Node node = record.mNode;
+        node.mKeys.remove(record.mKey);
+        // Drop the nodes left empty so prefix walks only visit matching entries
+        while (node.mParent != null && node.mKeys.isEmpty() && node.mChildren.isEmpty()) {
+            node.mParent.mChildren.remove(node.mSegment);
+            node = node.mParent;
+        }
+        for (String tag : record.mTags) {
+            Set<String> tagged = mTags.get(tag);
+            if (tagged != null && tagged.remove(record.mKey) && tagged.isEmpty()) {
+                mTags.remove(tag);
+            }
+        }
+        if (record.mUrlKey != null) {
+            Set<String> variants = mVariants.get(record.mUrlKey);
+            if (variants != null && variants.remove(record.mKey) && variants.isEmpty()) {
+                mVariants.remove(record.mUrlKey);
+            }
+        }
+    }
+
+    private static void collect(Node node, List<String> keys) {
+        keys.addAll(node.mKeys);
+        for (Node child : node.mChildren.values()) {
+            collect(child, keys);
+        }
+    }
+
+    /**
+     * Indexes the entries of a service method under their url path and tags, and removes the
+     * ones it {@link Invalidates}.
+     */
+    public final class Writer {
+        private final KeyComposer mKeys;
+        private final PathTemplate mTemplate;
+        private final String[] mTags;
+        private final String[] mInvalidatedPaths;
+        private final String[] mInvalidatedTags;
+
+        private Writer(KeyComposer keys, PathTemplate template, String[] tags, String[] invalidatedPaths,
+                       String[] invalidatedTags) {
+            this.mKeys = keys;
+            this.mTemplate = template;
+            this.mTags = tags;
+            this.mInvalidatedPaths = invalidatedPaths;
+            this.mInvalidatedTags = invalidatedTags;
+        }
+
+        /**
+         * Index an entry just written to the cache. Tags whose placeholders can't be read from
+         * the url, like on {@code @Url} methods, are skipped.
+         *
+         * @param key of the entry.
+         * @param url requested.
+         */
+        public void put(@NonNull String key, @NonNull HttpUrl url) {
+            List<String> segments = url.pathSegments();
+            Map<String, String> values = mTags.length > 0 ? mTemplate.match(segments) : null;
+            List<String> tags = new ArrayList<>(mTags.length);
+            for (String tag : mTags) {
+                String resolved = resolve(tag, values);
+                if (resolved != null) {
+                    tags.add(resolved);
+                }
+            }
+            String urlKey = mKeys.urlKey(url).toString();
+            index(key, urlKey.equals(key) ? null : urlKey, segments, tags);
+        }
+
+        /**
+         * Remove the entries invalidated by a successful call of a method declaring
+         * {@link Invalidates}, does nothing for other methods. The entries cached for the url
+         * itself are always removed. Paths and tags whose placeholders can't be read from the
+         * url are skipped.
+         *
+         * @param url requested.
+         * @return keys of the removed entries.
+         */
+        public List<String> invalidate(@NonNull HttpUrl url) {
+            if (mInvalidatedPaths == null) {
+                return Collections.emptyList();
+            }
+            List<String> keys = new ArrayList<>();
+            String key = mKeys.urlKey(url).toString();
+            remove(key);
+            if (mCache.remove(key) != null) {
+                keys.add(key);
+            }
+            List<String> variants = removeVariants(key);
+            removeFromCache(variants);
+            keys.addAll(variants);
+
+            List<String> segments = url.pathSegments();
+            Map<String, String> values = mTemplate.match(segments);
+            for (String path : mInvalidatedPaths) {
+                String resolved = resolve(path, values);
+                if (resolved != null && !resolved.startsWith("/")) {
+                    // Relative to the base url, the segments not matched by the template
+                    resolved = values != null ? basePath(segments) + resolved : null;
+                }
+                if (resolved != null) {
+                    keys.addAll(invalidatePrefix(resolved));
+                }
+            }
+            for (String tag : mInvalidatedTags) {
+                String resolved = resolve(tag, values);
+                if (resolved != null) {
+                    keys.addAll(invalidateTag(resolved));
+                }
+            }
+            return keys;
+        }
+
+        private String basePath(List<String> segments) {
+            StringBuilder path = new StringBuilder("/");
+            for (String segment : segments.subList(0, segments.size() - mTemplate.size())) {
+                path.append(segment).append('/');
+            }
+            return path.toString();
+        }
+
+        private String resolve(String value, Map<String, String> values) {
+            Matcher matcher = PathTemplate.PARAMETER.matcher(value);
+            StringBuffer resolved = new StringBuffer();
+            while (matcher.find()) {
+                String parameter = values != null ? values.get(matcher.group(1)) : null;
+                if (parameter == null) {
+                    return null;
+                }
+                matcher.appendReplacement(resolved, Matcher.quoteReplacement(parameter));
+            }
+            return matcher.appendTail(resolved).toString();
+        }
+    }
+
+    private static final class Node {
+        private final Node mParent;
+        private final String mSegment;
+        private final Map<String, Node> mChildren = new HashMap<>();
+        private final Set<String> mKeys = new HashSet<>();
+
+        Node(Node parent, String segment) {
+            this.mParent = parent;
+            this.mSegment = segment;
+        }
+    }
+
+    private static final class Record {
+        private final String mKey;
+        private final String mUrlKey;
+        private final Node mNode;
+        private final List<String> mTags;
+
+        Record(String key, String urlKey, Node node, List<String> tags) {
+            this.mKey = key;
+            this.mUrlKey = urlKey;
+            this.mNode = node;
+            this.mTags = tags;
+        }
+    }
+
+}
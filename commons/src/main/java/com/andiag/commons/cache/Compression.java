@@ -0,0 +1,122 @@
+package com.andiag.commons.cache;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+/**
+ * Compresses disk entries above a size threshold.
+ * <p>
+ * Every entry is prefixed with one byte naming the {@link Codec} used to write it, followed by the
+ * original length if it is compressed. All codecs are tried and the smallest output is kept, but
+ * only if it reaches the minimum ratio. Otherwise the entry is stored as is, so data that does
+ * not compress well, like images, costs a single byte.
+ */
+public final class Compression {
+    public static final int DEFAULT_THRESHOLD = 1024; // 1 KB
+    public static final float DEFAULT_MIN_RATIO = 1.25f;
+
+    private static final int NONE = 0;
+
+    /**
+     * Compression algorithm. Identifiers are written to disk so they must never change.
+     */
+    public interface Codec {
+
+        /**
+         * @return identifier in [1, 255].
+         */
+        int id();
+
+        byte[] compress(byte[] data) throws IOException;
+
+        byte[] decompress(byte[] data, int originalLength) throws IOException;
+    }
+
+    private final int mThreshold;
+    private final float mMinRatio;
+    private final Codec[] mCodecs;
+    private final Codec[] mById = new Codec[256];
+
+    /**
+     * @param threshold smaller entries are never compressed.
+     * @param minRatio  minimum original / compressed size ratio to store an entry compressed.
+     * @param codecs    tried for every entry above the threshold.
+     */
+    public Compression(int threshold, float minRatio, Codec... codecs) {
+        this.mThreshold = threshold;
+        this.mMinRatio = minRatio;
+        this.mCodecs = codecs.clone();
+        for (Codec codec : mCodecs) {
+            int id = codec.id();
+            if (id <= NONE || id >= mById.length) {
+                throw new IllegalArgumentException("Codec id out of range: " + id);
+            }
+            if (mById[id] != null) {
+                throw new IllegalArgumentException("Duplicated codec id: " + id);
+            }
+            mById[id] = codec;
+        }
+    }
+
+    /**
+     * @return {@link DeflateCodec} with the default threshold and ratio.
+     */
+    public static Compression deflate() {
+        return new Compression(DEFAULT_THRESHOLD, DEFAULT_MIN_RATIO, new DeflateCodec());
+    }
+
+    /**
+     * @return stores every entry as is.
+     */
+    public static Compression none() {
+        return new Compression(Integer.MAX_VALUE, DEFAULT_MIN_RATIO);
+    }
+
+    /**
+     * Write the codec header and the entry, compressed if worth it.
+     */
+    public void write(byte[] data, BufferedSink sink) throws IOException {
+        Codec best = null;
+        byte[] compressed = null;
+        if (data.length >= mThreshold) {
+            for (Codec codec : mCodecs) {
+                byte[] candidate = codec.compress(data);
+                if (compressed == null || candidate.length < compressed.length) {
+                    best = codec;
+                    compressed = candidate;
+                }
+            }
+        }
+
+        if (best == null || data.length < compressed.length * mMinRatio) {
+            sink.writeByte(NONE);
+            sink.write(data);
+        } else {
+            sink.writeByte(best.id());
+            sink.writeInt(data.length);
+            sink.write(compressed);
+        }
+    }
+
+    /**
+     * Read an entry written by {@link #write(byte[], BufferedSink)}.
+     *
+     * @param length bytes left in the source for this entry, including the codec header.
+     * @throws IOException if the entry was written with a codec not known by this instance.
+     */
+    public byte[] read(BufferedSource source, long length) throws IOException {
+        int id = source.readByte() & 0xff;
+        if (id == NONE) {
+            return source.readByteArray(length - 1);
+        }
+        Codec codec = mById[id];
+        if (codec == null) {
+            throw new IOException("Unknown codec: " + id);
+        }
+        int originalLength = source.readInt();
+        return codec.decompress(source.readByteArray(length - 1 - 4), originalLength);
+    }
+
+}
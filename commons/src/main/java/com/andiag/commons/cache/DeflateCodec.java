@@ -0,0 +1,96 @@
+package com.andiag.commons.cache;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import okio.Buffer;
+
+/**
+ * zlib {@link Compression.Codec} from {@link java.util.zip}, available on every platform without
+ * extra dependencies. The zlib checksum also catches corrupted entries.
+ */
+public final class DeflateCodec implements Compression.Codec {
+    public static final int ID = 1;
+    public static final int DEFAULT_MAX_ENTRY_BYTES = 32 * 1024 * 1024; // 32 MB
+    private static final int SEGMENT = 8192;
+    private static final int MAX_RATIO = 1032; // Highest ratio deflate can reach
+
+    private final int mLevel;
+    private final int mMaxEntryBytes;
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level {@link Deflater} compression level.
+     */
+    public DeflateCodec(int level) {
+        this(level, DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    /**
+     * @param level         {@link Deflater} compression level.
+     * @param maxEntryBytes longest entry decompressed, longer lengths are read as corrupted.
+     */
+    public DeflateCodec(int level, int maxEntryBytes) {
+        this.mLevel = level;
+        this.mMaxEntryBytes = maxEntryBytes;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(mLevel);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            Buffer buffer = new Buffer();
+            byte[] segment = new byte[Math.min(SEGMENT, data.length + 16)];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(segment);
+                buffer.write(segment, 0, count);
+            }
+            return buffer.readByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int originalLength) throws IOException {
+        // The length is read from disk, check it before allocating
+        if (originalLength < 0 || originalLength > mMaxEntryBytes || originalLength > (long) data.length * MAX_RATIO) {
+            throw new IOException("Corrupted entry length: " + originalLength);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[originalLength];
+            int offset = 0;
+            while (offset < originalLength) {
+                int count = inflater.inflate(result, offset, originalLength - offset);
+                if (count == 0
+                        && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != originalLength) {
+                throw new IOException("Truncated entry");
+            }
+            return result;
+        } catch (DataFormatException exc) {
+            throw new IOException(exc);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
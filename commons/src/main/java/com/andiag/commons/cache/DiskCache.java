@@ -0,0 +1,186 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.iagocanalejas.dualcache.interfaces.Cache;
+import com.jakewharton.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Disk {@link Cache} streaming {@code byte[]} entries straight to {@link DiskLruCache} files,
+ * without the {@link String} round trip of {@link ByteArraySerializer}.
+ * <p>
+ * Each file starts with a small envelope: a magic number carrying the format version and the
+ * expiration time of the entry, followed by the entry as written by {@link Compression}. Files
+ * written with another format version, or by anything else, are removed on read, so future
+ * format changes invalidate old entries cleanly.
+ * <p>
+ * Keys must be valid {@link DiskLruCache} keys, which is the case for
+ * {@link com.andiag.commons.CacheUtils#urlToKey(okhttp3.HttpUrl)}.
+ */
+public final class DiskCache implements Cache<String, byte[]> {
+    private static final String TAG = "DiskCache";
+    private static final int FORMAT_VERSION = 2;
+    private static final int MAGIC = 0x52430000 | FORMAT_VERSION; // "RC" + version
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final long NEVER = 0;
+    private static final String ENTRY_SUFFIX = ".0";
+    private static final byte[] REMOVED = new byte[0];
+
+    private final File mDirectory;
+    private final int mAppVersion;
+    private final long mMaxSize;
+    private final long mPersistenceMillis;
+    private final Compression mCompression;
+    private DiskLruCache mDiskCache;
+
+    /**
+     * @param directory          owned by this cache.
+     * @param appVersion         stored entries are cleared when it changes.
+     * @param maxSize            in bytes.
+     * @param persistenceSeconds entries life time, 0 to keep them until evicted.
+     * @throws IOException if the cache can't be opened.
+     */
+    public DiskCache(@NonNull File directory, int appVersion, long maxSize,
+                     long persistenceSeconds) throws IOException {
+        this(directory, appVersion, maxSize, persistenceSeconds, Compression.none());
+    }
+
+    /**
+     * @param directory          owned by this cache.
+     * @param appVersion         stored entries are cleared when it changes.
+     * @param maxSize            in bytes, compressed entries count with their compressed size.
+     * @param persistenceSeconds entries life time, 0 to keep them until evicted.
+     * @param compression        applied to the entries.
+     * @throws IOException if the cache can't be opened.
+     */
+    public DiskCache(@NonNull File directory, int appVersion, long maxSize,
+                     long persistenceSeconds, @NonNull Compression compression) throws IOException {
+        this.mDirectory = directory;
+        this.mCompression = compression;
+        this.mAppVersion = appVersion;
+        this.mMaxSize = maxSize;
+        this.mPersistenceMillis = persistenceSeconds * 1000;
+        this.mDiskCache = DiskLruCache.open(directory, appVersion, 1, maxSize);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        DiskLruCache.Snapshot snapshot = null;
+        boolean discard = false;
+        try {
+            snapshot = mDiskCache.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            long length = snapshot.getLength(0) - HEADER_SIZE;
+            BufferedSource source = Okio.buffer(Okio.source(snapshot.getInputStream(0)));
+            // Files in an unknown format are never going to be readable
+            discard = length < 0 || source.readInt() != MAGIC;
+            if (!discard) {
+                long expiresAt = source.readLong();
+                discard = expiresAt != NEVER && expiresAt <= System.currentTimeMillis();
+            }
+            return discard ? null : mCompression.read(source, length);
+        } catch (IOException | RuntimeException exc) {
+            // A corrupted entry must not fail every read of its key
+            Log.e(TAG, "Unable to read " + key, exc);
+            discard = true;
+            return null;
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+                if (discard) {
+                    removeQuietly(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return always null, previous value is not read back from disk.
+     */
+    @Override
+    public synchronized byte[] put(String key, byte[] value) {
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit(key);
+            if (editor == null) {
+                // Concurrent edit in progress
+                return null;
+            }
+            BufferedSink sink = Okio.buffer(Okio.sink(editor.newOutputStream(0)));
+            sink.writeInt(MAGIC);
+            sink.writeLong(mPersistenceMillis == NEVER
+                    ? NEVER : System.currentTimeMillis() + mPersistenceMillis);
+            mCompression.write(value, sink);
+            sink.close();
+            editor.commit();
+            editor = null;
+        } catch (IOException exc) {
+            Log.e(TAG, "Unable to write " + key, exc);
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of entries stored on disk.
+     */
+    @Override
+    public synchronized int size() {
+        File[] entries = mDirectory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ENTRY_SUFFIX);
+            }
+        });
+        return entries == null ? 0 : entries.length;
+    }
+
+    /**
+     * The entry is deleted without reading it back from disk.
+     *
+     * @return an empty array if an entry was removed, null otherwise.
+     */
+    @Override
+    public synchronized byte[] remove(String key) {
+        return removeQuietly(key) ? REMOVED : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        try {
+            mDiskCache.delete();
+            mDiskCache = DiskLruCache.open(mDirectory, mAppVersion, 1, mMaxSize);
+        } catch (IOException exc) {
+            Log.e(TAG, "Unable to clear", exc);
+        }
+    }
+
+    private boolean removeQuietly(String key) {
+        try {
+            return mDiskCache.remove(key);
+        } catch (IOException exc) {
+            Log.e(TAG, "Unable to remove " + key, exc);
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.andiag.commons.cache;
+
+/**
+ * Count-min sketch estimating how often keys were accessed, with 4 bit counters so popularity
+ * is kept for many more keys than the cache holds.
+ * <p>
+ * Each key maps to one counter in four rows, and its frequency is the smallest of them. Every
+ * row lives in the same {@code long[]}, each {@code long} holding sixteen counters. Once the
+ * number of increments reaches ten times the table size every counter is halved, so old
+ * popularity fades away.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] mTable = new long[0];
+    private int mSampleSize;
+    private int mAdditions;
+
+    /**
+     * Grow the table for the given number of keys. Growing forgets every frequency.
+     */
+    void ensureCapacity(int keys) {
+        int capacity = Integer.highestOneBit(Math.max(Math.min(keys, MAX_CAPACITY), 16) - 1) << 1;
+        if (mTable.length >= capacity) {
+            return;
+        }
+        mTable = new long[capacity];
+        mSampleSize = 10 * capacity;
+        mAdditions = 0;
+    }
+
+    /**
+     * @return number of keys the table is sized for.
+     */
+    int capacity() {
+        return mTable.length;
+    }
+
+    /**
+     * @return estimated number of accesses to the key, at most 15.
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            int counter = (start + row) << 2;
+            int count = (int) ((mTable[indexOf(hash, row)] >>> counter) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access to the key.
+     */
+    void increment(String key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            added |= incrementAt(indexOf(hash, row), start + row);
+        }
+        if (added && ++mAdditions == mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((mTable[index] & mask) == mask) {
+            // Saturated
+            return false;
+        }
+        mTable[index] += 1L << offset;
+        return true;
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            odd += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        // Counters that were odd lost half an increment each
+        mAdditions = (mAdditions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        long index = (hash + SEEDS[row]) * SEEDS[row];
+        index += index >>> 32;
+        return (int) index & (mTable.length - 1);
+    }
+
+    /**
+     * Mix the bits of {@link String#hashCode()}, which are poorly distributed for similar keys.
+     */
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+}
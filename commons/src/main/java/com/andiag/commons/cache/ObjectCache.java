@@ -0,0 +1,154 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU tier keeping already decoded responses in front of the {@code byte[]} tiers so RAM hits
+ * skip the converter.
+ * <p>
+ * Decoded values are shared, so only types with an explicit rule are stored:
+ * <ul>
+ * <li>{@link #immutable(Class[])} types are handed out as they are. {@link String} and the boxed
+ * primitives are registered by default.</li>
+ * <li>{@link #copyOnRead(Class, Copier)} types are copied when stored and again on every read,
+ * so callers can't modify the cached value.</li>
+ * </ul>
+ * Each entry remembers the {@code byte[]} it was decoded from and is only served while the byte
+ * tiers keep returning that same array. Expired or overwritten byte entries invalidate the
+ * decoded one without any extra bookkeeping.
+ */
+public final class ObjectCache {
+
+    /**
+     * Copy a decoded value so the cached instance is never shared.
+     */
+    public interface Copier<T> {
+        T copy(T value);
+    }
+
+    private static final Copier<Object> IDENTITY = new Copier<Object>() {
+        @Override
+        public Object copy(Object value) {
+            return value;
+        }
+    };
+
+    private final Map<Class<?>, Copier<?>> mCopiers = new HashMap<>();
+    private final LinkedHashMap<String, Decoded> mEntries;
+
+    /**
+     * @param maxEntries number of decoded values to keep.
+     */
+    public ObjectCache(final int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        mEntries = new LinkedHashMap<String, Decoded>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decoded> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        immutable(String.class, Boolean.class, Byte.class, Short.class, Character.class,
+                Integer.class, Long.class, Float.class, Double.class);
+    }
+
+    /**
+     * Declare types whose instances can't be modified and can be shared between callers.
+     */
+    public synchronized ObjectCache immutable(@NonNull Class<?>... types) {
+        for (Class<?> type : types) {
+            mCopiers.put(type, IDENTITY);
+        }
+        return this;
+    }
+
+    /**
+     * Declare a mutable type that can be cached by copying it on every store and read.
+     */
+    public synchronized <T> ObjectCache copyOnRead(@NonNull Class<T> type, @NonNull Copier<T> copier) {
+        mCopiers.put(type, copier);
+        return this;
+    }
+
+    /**
+     * @param key    cache key.
+     * @param type   response type.
+     * @param source bytes currently stored for the key in the byte tiers.
+     * @return decoded value if it was decoded from {@code source}, null otherwise.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T get(@NonNull String key, @NonNull Type type, @NonNull byte[] source) {
+        Decoded entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mSource != source || !entry.mType.equals(type)) {
+            mEntries.remove(key);
+            return null;
+        }
+        return (T) copy(type, entry.mValue);
+    }
+
+    /**
+     * Store a decoded value. Values of types without a rule are ignored.
+     *
+     * @param key    cache key.
+     * @param type   response type.
+     * @param source bytes stored for the key in the byte tiers.
+     * @param value  decoded from {@code source}.
+     */
+    public synchronized void put(@NonNull String key, @NonNull Type type, @NonNull byte[] source,
+                                 @Nullable Object value) {
+        if (value == null || copierFor(type) == null) {
+            mEntries.remove(key);
+            return;
+        }
+        mEntries.put(key, new Decoded(type, source, copy(type, value)));
+    }
+
+    public synchronized void remove(@NonNull String key) {
+        mEntries.remove(key);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copy(Type type, Object value) {
+        return ((Copier<Object>) copierFor(type)).copy(value);
+    }
+
+    private Copier<?> copierFor(Type type) {
+        if (type instanceof ParameterizedType) {
+            type = ((ParameterizedType) type).getRawType();
+        }
+        return type instanceof Class ? mCopiers.get(type) : null;
+    }
+
+    private static final class Decoded {
+        private final Type mType;
+        private final byte[] mSource;
+        private final Object mValue;
+
+        Decoded(Type type, byte[] source, Object value) {
+            this.mType = type;
+            this.mSource = source;
+            this.mValue = value;
+        }
+    }
+
+}
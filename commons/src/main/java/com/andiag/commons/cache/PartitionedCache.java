@@ -0,0 +1,197 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.andiag.commons.CachePartition;
+import com.andiag.commons.CacheUtils;
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link Cache} split in named partitions, each with its own quota and eviction, so the responses
+ * of a service method only evict responses of the methods sharing its partition. Methods are
+ * routed with {@link CachePartition} or a {@link Router}, the others use the default partition.
+ * <p>
+ * Cache adapters read and write the partition of each method directly. Used as a whole, reads
+ * look in every partition, writes go to the default one and removals to all of them, so
+ * invalidations find the entries wherever they are.
+ */
+public final class PartitionedCache implements Cache<String, byte[]>, RamLookup {
+
+    /**
+     * Chooses the partition of the service methods without {@link CachePartition}.
+     */
+    public interface Router {
+
+        /**
+         * @param annotations  of the service method.
+         * @param responseType of the service method.
+         * @return name of the partition, null for the default one.
+         */
+        @Nullable
+        String partition(@NonNull Annotation[] annotations, @NonNull Type responseType);
+    }
+
+    private final Cache<String, byte[]> mDefault;
+    private final Map<String, Cache<String, byte[]>> mPartitions;
+    private final List<Cache<String, byte[]>> mAll;
+
+    private PartitionedCache(Builder builder) {
+        this.mDefault = builder.mDefault;
+        this.mPartitions = Collections.unmodifiableMap(new LinkedHashMap<>(builder.mPartitions));
+        List<Cache<String, byte[]>> all = new ArrayList<>(mPartitions.size() + 1);
+        all.add(mDefault);
+        all.addAll(mPartitions.values());
+        this.mAll = Collections.unmodifiableList(all);
+    }
+
+    /**
+     * Choose the cache of a service method: the partition named by its {@link CachePartition},
+     * else the one chosen by the router, else the default one.
+     *
+     * @param cache        of the factory, partitioned or not.
+     * @param annotations  of the service method.
+     * @param responseType of the service method.
+     * @param router       for methods without {@link CachePartition}, may be null.
+     * @return the partition, or {@code cache} itself if it is not a {@link PartitionedCache}.
+     * @throws IllegalArgumentException if the partition does not exist, or if the method declares
+     *                                  {@link CachePartition} and the cache is not partitioned.
+     */
+    public static Cache<String, byte[]> select(@NonNull Cache<String, byte[]> cache, @NonNull Annotation[] annotations,
+                                               @NonNull Type responseType, @Nullable Router router) {
+        CachePartition partition = CacheUtils.findAnnotation(annotations, CachePartition.class);
+        if (!(cache instanceof PartitionedCache)) {
+            if (partition != null) {
+                throw new IllegalArgumentException("@CachePartition requires a PartitionedCache: " + partition.value());
+            }
+            return cache;
+        }
+        String name = partition != null ? partition.value()
+                : router != null ? router.partition(annotations, responseType) : null;
+        return name != null ? ((PartitionedCache) cache).partition(name) : ((PartitionedCache) cache).mDefault;
+    }
+
+    /**
+     * @param name of the partition.
+     * @return the partition.
+     * @throws IllegalArgumentException if there is no such partition.
+     */
+    public Cache<String, byte[]> partition(@NonNull String name) {
+        Cache<String, byte[]> partition = mPartitions.get(name);
+        if (partition == null) {
+            throw new IllegalArgumentException("Unknown cache partition: " + name);
+        }
+        return partition;
+    }
+
+    /**
+     * @return the partition of the service methods not routed anywhere else.
+     */
+    public Cache<String, byte[]> defaultPartition() {
+        return mDefault;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        for (Cache<String, byte[]> partition : mAll) {
+            if (partition.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        for (Cache<String, byte[]> partition : mAll) {
+            byte[] value = partition.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] getFromRam(String key) {
+        for (Cache<String, byte[]> partition : mAll) {
+            byte[] value = partition instanceof RamLookup
+                    ? ((RamLookup) partition).getFromRam(key) : partition.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] put(String key, byte[] value) {
+        return mDefault.put(key, value);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Cache<String, byte[]> partition : mAll) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public byte[] remove(String key) {
+        byte[] previous = null;
+        for (Cache<String, byte[]> partition : mAll) {
+            byte[] removed = partition.remove(key);
+            if (previous == null) {
+                previous = removed;
+            }
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (Cache<String, byte[]> partition : mAll) {
+            partition.clear();
+        }
+    }
+
+    public static final class Builder {
+        private final Cache<String, byte[]> mDefault;
+        private final Map<String, Cache<String, byte[]>> mPartitions = new LinkedHashMap<>();
+
+        /**
+         * @param defaultPartition used by the service methods not routed anywhere else.
+         */
+        public Builder(@NonNull Cache<String, byte[]> defaultPartition) {
+            this.mDefault = defaultPartition;
+        }
+
+        /**
+         * @param name  used by {@link CachePartition} and {@link Router}.
+         * @param cache of the partition, not shared with any other partition.
+         * @throws IllegalArgumentException if the name is already used.
+         */
+        public Builder partition(@NonNull String name, @NonNull Cache<String, byte[]> cache) {
+            if (mPartitions.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicated cache partition: " + name);
+            }
+            mPartitions.put(name, cache);
+            return this;
+        }
+
+        public PartitionedCache build() {
+            return new PartitionedCache(this);
+        }
+    }
+
+}
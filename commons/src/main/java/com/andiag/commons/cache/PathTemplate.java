@@ -0,0 +1,90 @@
+package com.andiag.commons.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Relative url of a Retrofit service method, matched against requested paths to read back the
+ * values of its {@code {name}} path parameters.
+ */
+final class PathTemplate {
+    static final Pattern PARAMETER = Pattern.compile("\\{([a-zA-Z][a-zA-Z0-9_-]*)\\}");
+
+    private final List<Pattern> mSegments = new ArrayList<>();
+    private final List<List<String>> mNames = new ArrayList<>();
+
+    PathTemplate(String relativeUrl) {
+        int query = relativeUrl.indexOf('?');
+        String path = query >= 0 ? relativeUrl.substring(0, query) : relativeUrl;
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.isEmpty()) {
+            return;
+        }
+        for (String segment : path.split("/", -1)) {
+            StringBuilder regex = new StringBuilder();
+            List<String> names = new ArrayList<>();
+            Matcher matcher = PARAMETER.matcher(segment);
+            int start = 0;
+            while (matcher.find()) {
+                regex.append(Pattern.quote(segment.substring(start, matcher.start()))).append("(.*?)");
+                names.add(matcher.group(1));
+                start = matcher.end();
+            }
+            regex.append(Pattern.quote(segment.substring(start)));
+            mSegments.add(Pattern.compile(regex.toString()));
+            mNames.add(names);
+        }
+    }
+
+    /**
+     * @return number of path segments.
+     */
+    int size() {
+        return mSegments.size();
+    }
+
+    /**
+     * @return true if the template declares the path parameter.
+     */
+    boolean hasParameter(String name) {
+        for (List<String> names : mNames) {
+            if (names.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Match the template against the last segments of a path, the first ones belong to the base
+     * url.
+     *
+     * @param segments decoded path segments.
+     * @return value of each path parameter, null if the path does not match.
+     */
+    Map<String, String> match(List<String> segments) {
+        int offset = segments.size() - mSegments.size();
+        if (offset < 0) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < mSegments.size(); i++) {
+            Matcher matcher = mSegments.get(i).matcher(segments.get(offset + i));
+            if (!matcher.matches()) {
+                return null;
+            }
+            List<String> names = mNames.get(i);
+            for (int group = 0; group < names.size(); group++) {
+                values.put(names.get(group), matcher.group(group + 1));
+            }
+        }
+        return values;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Implemented by caches able to tell which entries are held in RAM. Those entries are read on the
+ * calling thread instead of being handed to the cache I/O executor.
+ */
+public interface RamLookup {
+
+    /**
+     * @param key cache key.
+     * @return the entry if it can be read without any I/O, null otherwise.
+     */
+    @Nullable
+    byte[] getFromRam(String key);
+
+}
@@ -0,0 +1,74 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+/**
+ * Two level {@link Cache}. Reads look in RAM first and promote disk hits to RAM, writes and
+ * removals go to both levels.
+ */
+public final class TieredCache implements Cache<String, byte[]>, RamLookup {
+
+    private final Cache<String, byte[]> mRam;
+    private final Cache<String, byte[]> mDisk;
+
+    public TieredCache(@NonNull Cache<String, byte[]> ram, @NonNull Cache<String, byte[]> disk) {
+        this.mRam = ram;
+        this.mDisk = disk;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mRam.contains(key) || mDisk.contains(key);
+    }
+
+    @Override
+    public byte[] get(String key) {
+        byte[] value = mRam.get(key);
+        if (value == null) {
+            value = mDisk.get(key);
+            if (value != null) {
+                mRam.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public byte[] getFromRam(String key) {
+        if (mRam instanceof RamLookup) {
+            return ((RamLookup) mRam).getFromRam(key);
+        }
+        return mRam.get(key);
+    }
+
+    @Override
+    public byte[] put(String key, byte[] value) {
+        byte[] previous = mRam.put(key, value);
+        mDisk.put(key, value);
+        return previous;
+    }
+
+    /**
+     * @return number of entries on disk, which holds every entry in RAM.
+     */
+    @Override
+    public int size() {
+        return mDisk.size();
+    }
+
+    @Override
+    public byte[] remove(String key) {
+        byte[] previous = mRam.remove(key);
+        byte[] stored = mDisk.remove(key);
+        return previous != null ? previous : stored;
+    }
+
+    @Override
+    public void clear() {
+        mRam.clear();
+        mDisk.clear();
+    }
+
+}
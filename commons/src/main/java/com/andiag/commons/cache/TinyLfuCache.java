@@ -0,0 +1,80 @@
+package com.andiag.commons.cache;
+
+import android.support.annotation.NonNull;
+
+import com.iagocanalejas.dualcache.interfaces.Cache;
+import com.iagocanalejas.dualcache.interfaces.SizeOf;
+
+/**
+ * RAM {@link Cache} bounded by the size of its entries rather than their count, evicting with the
+ * W-TinyLFU policy of {@link TinyLfuPolicy}. A few large responses can't push out every small
+ * one, and entries requested once are only kept if they are requested more often than the ones
+ * they would evict.
+ */
+public final class TinyLfuCache implements Cache<String, byte[]>, RamLookup {
+
+    private final TinyLfuPolicy mPolicy;
+    private final SizeOf<byte[]> mSizeOf;
+
+    /**
+     * @param maxBytes maximum total size of the entries, weighed with {@link BytesLengthSizeOf}.
+     */
+    public TinyLfuCache(long maxBytes) {
+        this(maxBytes, new BytesLengthSizeOf());
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the entries.
+     * @param sizeOf    weight of each entry.
+     */
+    public TinyLfuCache(long maxWeight, @NonNull SizeOf<byte[]> sizeOf) {
+        this.mPolicy = new TinyLfuPolicy(maxWeight);
+        this.mSizeOf = sizeOf;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mPolicy.contains(key);
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        return mPolicy.get(key);
+    }
+
+    /**
+     * Misses are not recorded, {@link #get(String)} records them when the lookup goes on.
+     */
+    @Override
+    public synchronized byte[] getFromRam(String key) {
+        return mPolicy.getIfPresent(key);
+    }
+
+    @Override
+    public synchronized byte[] put(String key, byte[] value) {
+        return mPolicy.put(key, value, mSizeOf.sizeOf(value));
+    }
+
+    @Override
+    public synchronized int size() {
+        return mPolicy.size();
+    }
+
+    /**
+     * @return total weight of the entries.
+     */
+    public synchronized long weight() {
+        return mPolicy.weight();
+    }
+
+    @Override
+    public synchronized byte[] remove(String key) {
+        return mPolicy.remove(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        mPolicy.clear();
+    }
+
+}
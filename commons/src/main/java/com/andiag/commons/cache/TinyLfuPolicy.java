@@ -0,0 +1,257 @@
+package com.andiag.commons.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction over entries weighted by their size. Not thread safe, see
+ * {@link TinyLfuCache}.
+ * <p>
+ * New entries go to a small LRU window that absorbs bursts. Entries leaving it become candidates
+ * for the main space, a segmented LRU split in probation and protected, and are only admitted if
+ * they were accessed more often than the probation entry they would evict. Access frequencies are
+ * estimated by a {@link FrequencySketch}, so one-off requests and scans can't flush out the
+ * responses requested again and again.
+ * <p>
+ * Kept free of Android and dualcache classes so it can be measured on a plain JVM.
+ */
+final class TinyLfuPolicy {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MIN_SKETCH_CAPACITY = 64;
+
+    private final Map<String, Node> mNodes = new HashMap<>();
+    private final FrequencySketch mSketch = new FrequencySketch();
+    private final Queue mWindow = new Queue();
+    private final Queue mProbation = new Queue();
+    private final Queue mProtected = new Queue();
+    private final long mMaxWeight;
+    private final long mMaxWindow;
+    private final long mMaxProtected;
+    private long mWeight;
+
+    /**
+     * @param maxWeight maximum total weight of the entries.
+     */
+    TinyLfuPolicy(long maxWeight) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Max weight must be positive: " + maxWeight);
+        }
+        this.mMaxWeight = maxWeight;
+        this.mMaxWindow = Math.max(1, maxWeight * WINDOW_PERCENT / 100);
+        this.mMaxProtected = (maxWeight - mMaxWindow) * PROTECTED_PERCENT / 100;
+        mSketch.ensureCapacity(MIN_SKETCH_CAPACITY);
+    }
+
+    boolean contains(String key) {
+        return mNodes.containsKey(key);
+    }
+
+    /**
+     * Look for an entry, recording the access even if it is missing so it can be admitted once
+     * stored.
+     */
+    byte[] get(String key) {
+        mSketch.increment(key);
+        return access(mNodes.get(key));
+    }
+
+    /**
+     * Look for an entry, recording the access only if it is found. Used for lookups that are
+     * followed by a {@link #get(String)} when they miss, which records it.
+     */
+    byte[] getIfPresent(String key) {
+        Node node = mNodes.get(key);
+        if (node != null) {
+            mSketch.increment(key);
+        }
+        return access(node);
+    }
+
+    /**
+     * Store an entry, evicting others if the maximum weight is exceeded. Entries heavier than the
+     * maximum weight are not stored, and remove the previous value of the key.
+     *
+     * @return previous value of the key.
+     */
+    byte[] put(String key, byte[] value, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight: " + weight);
+        }
+        if (weight > mMaxWeight) {
+            return remove(key);
+        }
+        Node node = mNodes.get(key);
+        if (node != null) {
+            byte[] previous = node.mValue;
+            node.mQueue.mWeight += weight - node.mWeight;
+            mWeight += weight - node.mWeight;
+            node.mValue = value;
+            node.mWeight = weight;
+            access(node);
+            evict();
+            return previous;
+        }
+        node = new Node(key, value, weight);
+        mNodes.put(key, node);
+        mWindow.addLast(node);
+        mWeight += weight;
+        if (mNodes.size() > mSketch.capacity()) {
+            mSketch.ensureCapacity(2 * mNodes.size());
+        }
+        evict();
+        return null;
+    }
+
+    byte[] remove(String key) {
+        Node node = mNodes.remove(key);
+        if (node == null) {
+            return null;
+        }
+        node.mQueue.remove(node);
+        mWeight -= node.mWeight;
+        return node.mValue;
+    }
+
+    /**
+     * Remove every entry. Access frequencies are kept.
+     */
+    void clear() {
+        mNodes.clear();
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mWeight = 0;
+    }
+
+    int size() {
+        return mNodes.size();
+    }
+
+    /**
+     * @return total weight of the entries.
+     */
+    long weight() {
+        return mWeight;
+    }
+
+    private byte[] access(Node node) {
+        if (node == null) {
+            return null;
+        }
+        Queue queue = node.mQueue;
+        queue.remove(node);
+        if (queue == mProbation) {
+            mProtected.addLast(node);
+            // Protected entries over its share go back to probation
+            while (mProtected.mWeight > mMaxProtected && mProtected.first() != node) {
+                Node demoted = mProtected.first();
+                mProtected.remove(demoted);
+                mProbation.addLast(demoted);
+            }
+        } else {
+            queue.addLast(node);
+        }
+        return node.mValue;
+    }
+
+    /**
+     * Move the window overflow to probation as candidates, then evict until the maximum weight is
+     * respected. Each candidate is compared with the least recently used probation entry and the
+     * one accessed less often is evicted.
+     */
+    private void evict() {
+        Node candidate = null;
+        while (mWindow.mWeight > mMaxWindow) {
+            Node node = mWindow.first();
+            mWindow.remove(node);
+            mProbation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (mWeight > mMaxWeight) {
+            Node victim = mProbation.first();
+            if (victim == null) {
+                victim = mProtected.first() != null ? mProtected.first() : mWindow.first();
+                evict(victim);
+            } else if (candidate == null) {
+                evict(victim);
+            } else if (candidate == victim) {
+                candidate = mProbation.next(candidate);
+                evict(victim);
+            } else if (mSketch.frequency(candidate.mKey) > mSketch.frequency(victim.mKey)) {
+                evict(victim);
+            } else {
+                Node rejected = candidate;
+                candidate = mProbation.next(candidate);
+                evict(rejected);
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        mNodes.remove(node.mKey);
+        node.mQueue.remove(node);
+        mWeight -= node.mWeight;
+    }
+
+    private static final class Node {
+        private final String mKey;
+        private byte[] mValue;
+        private int mWeight;
+        private Queue mQueue;
+        private Node mPrevious;
+        private Node mNext;
+
+        Node(String key, byte[] value, int weight) {
+            this.mKey = key;
+            this.mValue = value;
+            this.mWeight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked LRU queue, least recently used first, keeping the weight of its entries.
+     */
+    private static final class Queue {
+        private final Node mHead = new Node(null, null, 0);
+        private long mWeight;
+
+        Queue() {
+            clear();
+        }
+
+        Node first() {
+            return next(mHead);
+        }
+
+        Node next(Node node) {
+            return node.mNext == mHead ? null : node.mNext;
+        }
+
+        void addLast(Node node) {
+            node.mPrevious = mHead.mPrevious;
+            node.mNext = mHead;
+            mHead.mPrevious.mNext = node;
+            mHead.mPrevious = node;
+            node.mQueue = this;
+            mWeight += node.mWeight;
+        }
+
+        void remove(Node node) {
+            node.mPrevious.mNext = node.mNext;
+            node.mNext.mPrevious = node.mPrevious;
+            node.mPrevious = null;
+            node.mNext = null;
+            mWeight -= node.mWeight;
+        }
+
+        void clear() {
+            mHead.mPrevious = mHead;
+            mHead.mNext = mHead;
+            mWeight = 0;
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.andiag.commons.key;
+
+import okhttp3.HttpUrl;
+
+/**
+ * 128 bit cache key. Equality and hashing work over the two raw longs so in-memory structures
+ * can use it directly. {@link #toString()} renders the key for {@code Cache<String, byte[]>}
+ * tiers; it is computed once and reused.
+ */
+public final class CacheKey {
+    private static final char[] ALPHABET = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+    private static final int CHARS = 26; // ceil(128 / 5)
+
+    private final long mHigh;
+    private final long mLow;
+    private String mString;
+
+    CacheKey(long high, long low) {
+        this.mHigh = high;
+        this.mLow = low;
+    }
+
+    /**
+     * Build the key identifying an url, normalized by {@link UrlNormalizer#DEFAULT}.
+     *
+     * @param url requested
+     * @return {@link CacheKey}
+     */
+    public static CacheKey of(HttpUrl url) {
+        return UrlNormalizer.DEFAULT.key(url);
+    }
+
+    public long high() {
+        return mHigh;
+    }
+
+    public long low() {
+        return mLow;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey key = (CacheKey) other;
+        return mHigh == key.mHigh && mLow == key.mLow;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mLow ^ (mLow >>> 32));
+    }
+
+    /**
+     * Lower case base 32 rendering of the key. Only uses [0-9a-v] so it is a valid
+     * {@link com.jakewharton.disklrucache.DiskLruCache} key.
+     */
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            char[] chars = new char[CHARS];
+            long high = mHigh;
+            long low = mLow;
+            for (int i = CHARS - 1; i >= 0; i--) {
+                chars[i] = ALPHABET[(int) (low & 0x1f)];
+                low = (low >>> 5) | (high << 59);
+                high >>>= 5;
+            }
+            string = new String(chars);
+            mString = string;
+        }
+        return string;
+    }
+
+}
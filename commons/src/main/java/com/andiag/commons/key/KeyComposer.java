@@ -0,0 +1,103 @@
+package com.andiag.commons.key;
+
+import java.io.IOException;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+/**
+ * Derives the cache keys of the requests of a service method. {@code GET} requests are keyed by
+ * their url, normalized by a {@link UrlNormalizer}. If the method varies on request headers, their
+ * names and values are fed to the same hash, read in place from the {@link Headers}. When the
+ * method caches {@code POST} requests, their method, content type and body are hashed too, the
+ * body streamed without ever being copied whole.
+ */
+public final class KeyComposer {
+    /**
+     * Keys {@code GET} requests by url and caches nothing else.
+     */
+    public static final KeyComposer URL = new KeyComposer(false, new String[0], UrlNormalizer.DEFAULT);
+
+    private final boolean mCachePost;
+    private final String[] mVaryHeaders;
+    private final UrlNormalizer mNormalizer;
+
+    /**
+     * @param cachePost   also cache {@code POST} requests, keyed by body.
+     * @param varyHeaders names of the request headers keyed along with the url.
+     * @param normalizer  of the urls.
+     */
+    public KeyComposer(boolean cachePost, String[] varyHeaders, UrlNormalizer normalizer) {
+        this.mCachePost = cachePost;
+        this.mVaryHeaders = varyHeaders.clone();
+        this.mNormalizer = normalizer;
+    }
+
+    /**
+     * @return key of a {@code GET} request for the url, without vary headers.
+     */
+    public CacheKey urlKey(HttpUrl url) {
+        return mNormalizer.key(url);
+    }
+
+    /**
+     * @return true if the responses of the request are cached.
+     */
+    public boolean isCached(Request request) {
+        return request.method().equals("GET") || mCachePost && request.method().equals("POST");
+    }
+
+    /**
+     * @param request cached, see {@link #isCached(Request)}.
+     * @return key of the request.
+     * @throws IllegalStateException if the request body can't be written.
+     */
+    public CacheKey key(Request request) {
+        KeyHasher hasher = mNormalizer.putUrl(KeyHasher.local(), request.url());
+        if (mVaryHeaders.length > 0) {
+            putHeaders(hasher, request.headers());
+        }
+        if (request.method().equals("GET")) {
+            return hasher.build();
+        }
+        hasher.putString(request.method());
+        RequestBody body = request.body();
+        if (body == null) {
+            return hasher.putInt(-1).build();
+        }
+        MediaType contentType = body.contentType();
+        hasher.putString(contentType != null ? contentType.toString() : null);
+        try {
+            return hasher.putBody(body).build();
+        } catch (IOException exc) {
+            throw new IllegalStateException("Unable to hash the request body", exc);
+        }
+    }
+
+    /**
+     * Feed each vary header name followed by its values, in order. Counts are fed before the
+     * values so a missing header and an empty one give different keys.
+     */
+    private void putHeaders(KeyHasher hasher, Headers headers) {
+        for (String name : mVaryHeaders) {
+            hasher.putString(name);
+            int count = 0;
+            for (int i = 0, size = headers.size(); i < size; i++) {
+                if (headers.name(i).equalsIgnoreCase(name)) {
+                    count++;
+                }
+            }
+            hasher.putInt(count);
+            for (int i = 0, size = headers.size(); i < size && count > 0; i++) {
+                if (headers.name(i).equalsIgnoreCase(name)) {
+                    hasher.putString(headers.value(i));
+                    count--;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.andiag.commons.key;
+
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Streaming MurmurHash3 (x64, 128 bits) used to derive {@link CacheKey}s.
+ * Values are fed one by one so callers never need to build an intermediate {@link String}.
+ * Instances are mutable and not thread safe, use {@link #local()} to get a per-thread one.
+ */
+public final class KeyHasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final ThreadLocal<KeyHasher> LOCAL = new ThreadLocal<KeyHasher>() {
+        @Override
+        protected KeyHasher initialValue() {
+            return new KeyHasher();
+        }
+    };
+
+    private long mH1;
+    private long mH2;
+    private long mK1;
+    private long mK2;
+    private int mPending;
+    private long mLength;
+    private byte[] mScratch;
+
+    /**
+     * @return a reset hasher owned by the current thread.
+     */
+    public static KeyHasher local() {
+        return LOCAL.get().reset();
+    }
+
+    public KeyHasher reset() {
+        mH1 = 0;
+        mH2 = 0;
+        mK1 = 0;
+        mK2 = 0;
+        mPending = 0;
+        mLength = 0;
+        return this;
+    }
+
+    public KeyHasher putByte(byte value) {
+        return append(value & 0xffL, 1);
+    }
+
+    public KeyHasher putBytes(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && mPending != 0) {
+            putByte(bytes[i++]);
+        }
+        // Whole 16 byte blocks go straight to the mixer
+        for (; i + 16 <= end; i += 16) {
+            mix(littleEndian(bytes, i), littleEndian(bytes, i + 8));
+            mLength += 16;
+        }
+        for (; i < end; i++) {
+            putByte(bytes[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Feed the bytes a request body writes. They go through a small reused buffer, the body is
+     * never held in memory whole.
+     */
+    public KeyHasher putBody(RequestBody body) throws IOException {
+        if (mScratch == null) {
+            mScratch = new byte[8192];
+        }
+        BufferedSink sink = Okio.buffer(new HashingSink());
+        body.writeTo(sink);
+        sink.flush();
+        return this;
+    }
+
+    public KeyHasher putChar(char value) {
+        if ((mPending & 1) != 0) {
+            putByte((byte) value);
+            return putByte((byte) (value >>> 8));
+        }
+        return append(value, 2);
+    }
+
+    public KeyHasher putInt(int value) {
+        if ((mPending & 3) != 0) {
+            putChar((char) value);
+            return putChar((char) (value >>> 16));
+        }
+        return append(value & 0xffffffffL, 4);
+    }
+
+    public KeyHasher putLong(long value) {
+        putInt((int) value);
+        return putInt((int) (value >>> 32));
+    }
+
+    /**
+     * Feed the chars in [start, end) of the given sequence.
+     */
+    public KeyHasher putChars(CharSequence chars, int start, int end) {
+        int i = start;
+        while (i < end && mPending != 0) {
+            putChar(chars.charAt(i++));
+        }
+        // Whole 16 byte blocks go straight to the mixer
+        for (; i + 8 <= end; i += 8) {
+            mix(chars.charAt(i)
+                            | (long) chars.charAt(i + 1) << 16
+                            | (long) chars.charAt(i + 2) << 32
+                            | (long) chars.charAt(i + 3) << 48,
+                    chars.charAt(i + 4)
+                            | (long) chars.charAt(i + 5) << 16
+                            | (long) chars.charAt(i + 6) << 32
+                            | (long) chars.charAt(i + 7) << 48);
+            mLength += 16;
+        }
+        for (; i < end; i++) {
+            putChar(chars.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Feed a length prefixed string so consecutive values can't collide by shifting chars
+     * from one into the other. A null string is fed as length -1.
+     */
+    public KeyHasher putString(CharSequence chars) {
+        if (chars == null) {
+            return putInt(-1);
+        }
+        putInt(chars.length());
+        return putChars(chars, 0, chars.length());
+    }
+
+    /**
+     * Feed the parts of an {@link HttpUrl} that identify a resource, normalized by
+     * {@link UrlNormalizer#DEFAULT}.
+     */
+    public KeyHasher putUrl(HttpUrl url) {
+        return UrlNormalizer.DEFAULT.putUrl(this, url);
+    }
+
+    public CacheKey build() {
+        long h1 = mH1;
+        long h2 = mH2;
+        if (mPending > 0) {
+            long k1 = mK1;
+            long k2 = mK2;
+            if (mPending > 8) {
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            }
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= mLength;
+        h2 ^= mLength;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new CacheKey(h1, h2);
+    }
+
+    /**
+     * Append the {@code bytes} low bytes of {@code value}. The pending block must be aligned to
+     * {@code bytes} so the value never spans both halves of the block.
+     */
+    private KeyHasher append(long value, int bytes) {
+        if (mPending < 8) {
+            mK1 |= value << (mPending << 3);
+        } else {
+            mK2 |= value << ((mPending - 8) << 3);
+        }
+        mLength += bytes;
+        mPending += bytes;
+        if (mPending == 16) {
+            mix(mK1, mK2);
+            mK1 = 0;
+            mK2 = 0;
+            mPending = 0;
+        }
+        return this;
+    }
+
+    private void mix(long k1, long k2) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        mH1 ^= k1;
+        mH1 = Long.rotateLeft(mH1, 27);
+        mH1 += mH2;
+        mH1 = mH1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        mH2 ^= k2;
+        mH2 = Long.rotateLeft(mH2, 31);
+        mH2 += mH1;
+        mH2 = mH2 * 5 + 0x38495ab5;
+    }
+
+    private static long littleEndian(byte[] bytes, int i) {
+        return bytes[i] & 0xffL
+                | (bytes[i + 1] & 0xffL) << 8
+                | (bytes[i + 2] & 0xffL) << 16
+                | (bytes[i + 3] & 0xffL) << 24
+                | (bytes[i + 4] & 0xffL) << 32
+                | (bytes[i + 5] & 0xffL) << 40
+                | (bytes[i + 6] & 0xffL) << 48
+                | (bytes[i + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private final class HashingSink implements Sink {
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                int read = source.read(mScratch, 0, (int) Math.min(byteCount, mScratch.length));
+                if (read == -1) {
+                    throw new IOException("Source exhausted");
+                }
+                putBytes(mScratch, 0, read);
+                byteCount -= read;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
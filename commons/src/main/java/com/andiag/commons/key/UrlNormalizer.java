@@ -0,0 +1,139 @@
+package com.andiag.commons.key;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Feeds an {@link HttpUrl} to a {@link KeyHasher} in a canonical form, so urls naming the same
+ * resource share a cache entry:
+ * <ul>
+ * <li>Path segments and query parameters are fed decoded, percent-encoding case and encoded
+ * unreserved chars make no difference. Scheme and host are already lower case and the port
+ * is fed as a number, explicit default ports make no difference either.</li>
+ * <li>Query parameters are sorted by name, parameters sharing a name keep their order.</li>
+ * <li>Ignored parameters, like tracking ones or cache busters, are left out.</li>
+ * </ul>
+ * Everything is read from the parsed url, nothing is allocated.
+ */
+public final class UrlNormalizer {
+    /**
+     * Sorts and decodes, ignores no parameter.
+     */
+    public static final UrlNormalizer DEFAULT = new Builder().build();
+
+    private final String[] mIgnored;
+    private final String[] mIgnoredPrefixes;
+
+    private UrlNormalizer(Builder builder) {
+        this.mIgnored = builder.mIgnored.toArray(new String[builder.mIgnored.size()]);
+        this.mIgnoredPrefixes = builder.mIgnoredPrefixes.toArray(new String[builder.mIgnoredPrefixes.size()]);
+    }
+
+    /**
+     * Feed the canonical form of the url: scheme, host, port, path segments and the query
+     * parameters left. The fragment is never sent to the server so it is left out.
+     */
+    public KeyHasher putUrl(KeyHasher hasher, HttpUrl url) {
+        hasher.putString(url.scheme());
+        hasher.putString(url.host());
+        hasher.putInt(url.port());
+
+        List<String> segments = url.pathSegments();
+        hasher.putInt(segments.size());
+        for (int i = 0, size = segments.size(); i < size; i++) {
+            hasher.putString(segments.get(i));
+        }
+
+        int size = url.querySize();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!isIgnored(url, i)) {
+                kept++;
+            }
+        }
+        hasher.putInt(kept);
+        // Selection sort: queries are short, and it needs no array to sort
+        int previous = -1;
+        for (int n = 0; n < kept; n++) {
+            int next = -1;
+            for (int i = 0; i < size; i++) {
+                if (!isIgnored(url, i)
+                        && (previous == -1 || compare(url, i, previous) > 0)
+                        && (next == -1 || compare(url, i, next) < 0)) {
+                    next = i;
+                }
+            }
+            hasher.putString(url.queryParameterName(next));
+            hasher.putString(url.queryParameterValue(next));
+            previous = next;
+        }
+        return hasher;
+    }
+
+    /**
+     * @return the key of the canonical form of the url.
+     */
+    public CacheKey key(HttpUrl url) {
+        return putUrl(KeyHasher.local(), url).build();
+    }
+
+    private boolean isIgnored(HttpUrl url, int index) {
+        String name = url.queryParameterName(index);
+        // A bare '?' parses as an empty parameter
+        if (name.isEmpty() && url.queryParameterValue(index) == null) {
+            return true;
+        }
+        for (String ignored : mIgnored) {
+            if (name.equals(ignored)) {
+                return true;
+            }
+        }
+        for (String prefix : mIgnoredPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Order parameters by name, then by position.
+     */
+    private static int compare(HttpUrl url, int first, int second) {
+        int names = url.queryParameterName(first).compareTo(url.queryParameterName(second));
+        return names != 0 ? names : first - second;
+    }
+
+    public static final class Builder {
+        private final List<String> mIgnored = new ArrayList<>();
+        private final List<String> mIgnoredPrefixes = new ArrayList<>();
+
+        /**
+         * Leave query parameters out of the keys, like {@code "_"} cache busters. A trailing
+         * {@code '*'} matches any suffix, {@code "utm_*"} ignores every {@code utm_} parameter.
+         *
+         * @param names decoded, case sensitive.
+         * @throws IllegalArgumentException if a name is empty.
+         */
+        public Builder ignore(String... names) {
+            for (String name : names) {
+                if (name.isEmpty() || name.equals("*")) {
+                    throw new IllegalArgumentException("Ignored query parameter can't be empty");
+                }
+                if (name.endsWith("*")) {
+                    mIgnoredPrefixes.add(name.substring(0, name.length() - 1));
+                } else {
+                    mIgnored.add(name);
+                }
+            }
+            return this;
+        }
+
+        public UrlNormalizer build() {
+            return new UrlNormalizer(this);
+        }
+    }
+
+}
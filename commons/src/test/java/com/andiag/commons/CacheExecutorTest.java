@@ -0,0 +1,74 @@
+package com.andiag.commons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class CacheExecutorTest {
+
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private CacheExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = new CacheExecutor(1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void defaultQueueIsBounded() {
+        CacheExecutor executor = new CacheExecutor(CacheExecutor.DEFAULT_THREADS);
+        assertThat(executor.getQueueCapacity()).isEqualTo(CacheExecutor.DEFAULT_QUEUE_SIZE);
+        executor.shutdown();
+    }
+
+    @Test
+    public void fullQueueRunsOnCaller() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(mRelease);
+            }
+        });
+        assertTrue(started.await(1, SECONDS));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertThat(mExecutor.getQueueSize()).isEqualTo(1);
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertThat(ranOn.get()).isSameAs(Thread.currentThread());
+        assertThat(mExecutor.getCallerRuns()).isEqualTo(1);
+        assertThat(mExecutor.getQueueCapacity()).isEqualTo(1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, SECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.andiag.commons.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class FrequencySketchTest {
+
+    private FrequencySketch mSketch;
+
+    @Before
+    public void setUp() {
+        mSketch = new FrequencySketch();
+        mSketch.ensureCapacity(16);
+    }
+
+    @Test
+    public void countsAccesses() {
+        assertThat(mSketch.frequency("key")).isEqualTo(0);
+        for (int i = 0; i < 5; i++) {
+            mSketch.increment("key");
+        }
+        assertThat(mSketch.frequency("key")).isEqualTo(5);
+    }
+
+    @Test
+    public void countersSaturate() {
+        for (int i = 0; i < 20; i++) {
+            mSketch.increment("key");
+        }
+        assertThat(mSketch.frequency("key")).isEqualTo(15);
+    }
+
+    @Test
+    public void countersHalvedAfterSampleSize() {
+        for (int i = 0; i < 12; i++) {
+            mSketch.increment("hot");
+        }
+        // Ten increments per counter slot trigger the reset
+        int sampleSize = 10 * mSketch.capacity();
+        for (int i = 0; i < sampleSize; i++) {
+            int before = mSketch.frequency("hot");
+            mSketch.increment("key" + i);
+            int after = mSketch.frequency("hot");
+            if (after < before) {
+                assertThat(after).isEqualTo(before / 2);
+                return;
+            }
+        }
+        fail("Sketch never aged");
+    }
+
+    @Test
+    public void growingForgetsFrequencies() {
+        mSketch.increment("key");
+        mSketch.ensureCapacity(1000);
+        assertThat(mSketch.capacity()).isEqualTo(1024);
+        assertThat(mSketch.frequency("key")).isEqualTo(0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.andiag.commons.cache;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class TinyLfuCacheTest {
+
+    @Test
+    public void hotEntryAdmittedOverScan() {
+        // 50 entries of 10 bytes, few enough for the sketch to never grow and forget
+        TinyLfuCache cache = new TinyLfuCache(500);
+        cache.put("hot", new byte[10]);
+        for (int i = 0; i < 10; i++) {
+            cache.get("hot");
+        }
+
+        for (int i = 0; i < 300; i++) {
+            String key = "scan" + i;
+            if (cache.get(key) == null) {
+                cache.put(key, new byte[10]);
+            }
+        }
+        assertThat(cache.get("hot")).isNotNull();
+        assertThat(cache.weight()).isLessThanOrEqualTo(500);
+    }
+
+    @Test
+    public void evictsByWeight() {
+        TinyLfuCache cache = new TinyLfuCache(1000);
+        for (int i = 0; i < 10; i++) {
+            cache.put("small" + i, new byte[10]);
+        }
+        cache.put("large", new byte[900]);
+        assertThat(cache.weight()).isEqualTo(1000);
+
+        cache.put("other", new byte[100]);
+        assertThat(cache.weight()).isLessThanOrEqualTo(1000);
+        assertThat(cache.size()).isLessThan(12);
+    }
+
+    @Test
+    public void entryLargerThanWindowStored() {
+        // The window is 1% of the maximum weight, 10 bytes
+        TinyLfuCache cache = new TinyLfuCache(1000);
+        cache.put("large", new byte[600]);
+        assertThat(cache.contains("large")).isTrue();
+        assertThat(cache.weight()).isEqualTo(600);
+
+        // Two of them don't fit, the newcomer is not accessed more often than the resident
+        cache.get("large");
+        cache.put("larger", new byte[700]);
+        assertThat(cache.contains("large")).isTrue();
+        assertThat(cache.contains("larger")).isFalse();
+        assertThat(cache.weight()).isEqualTo(600);
+    }
+
+    @Test
+    public void entryHeavierThanMaximumNotStored() {
+        TinyLfuCache cache = new TinyLfuCache(1000);
+        cache.put("key", new byte[10]);
+        cache.put("key", new byte[1001]);
+        assertThat(cache.contains("key")).isFalse();
+        assertThat(cache.weight()).isEqualTo(0);
+    }
+
+    @Test
+    public void replacingEntryUpdatesWeight() {
+        TinyLfuCache cache = new TinyLfuCache(1000);
+        cache.put("key", new byte[10]);
+        cache.put("key", new byte[300]);
+        assertThat(cache.weight()).isEqualTo(300);
+        assertThat(cache.remove("key")).hasSize(300);
+        assertThat(cache.weight()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,49 @@
+package com.andiag.commons.key;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import okhttp3.HttpUrl;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class CacheKeyTest {
+
+    @Test
+    public void renderedAsBase32() {
+        assertThat(new CacheKey(0, 0).toString()).isEqualTo("00000000000000000000000000");
+        assertThat(new CacheKey(0, 31).toString()).isEqualTo("0000000000000000000000000v");
+        assertThat(new CacheKey(0, 32).toString()).isEqualTo("00000000000000000000000010");
+        assertThat(new CacheKey(-1, -1).toString()).isEqualTo("7vvvvvvvvvvvvvvvvvvvvvvvvv");
+    }
+
+    @Test
+    public void base32RoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            CacheKey key = new CacheKey(random.nextLong(), random.nextLong());
+            String string = key.toString();
+            assertThat(string).matches("[0-9a-v]{26}");
+            assertThat(decode(string)).isEqualTo(key);
+        }
+    }
+
+    @Test
+    public void urlKeyRoundTrip() {
+        CacheKey key = CacheKey.of(HttpUrl.parse("https://example.com/users/42?b=2&a=1"));
+        assertThat(decode(key.toString())).isEqualTo(key);
+        assertThat(key).isEqualTo(CacheKey.of(HttpUrl.parse("https://example.com/users/42?a=1&b=2")));
+    }
+
+    private static CacheKey decode(String string) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < string.length(); i++) {
+            int digit = Character.digit(string.charAt(i), 32);
+            high = (high << 5) | (low >>> 59);
+            low = (low << 5) | digit;
+        }
+        return new CacheKey(high, low);
+    }
+}
@@ -0,0 +1,139 @@
+package com.andiag.commons.key;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class KeyHasherTest {
+
+    // Values from Guava's Hashing.murmur3_128(), first and second little endian halves
+    private static final String[] INPUTS = {
+            "",
+            "a",
+            "abc",
+            "hello, world",
+            "The quick brown fox jumps over the lazy dog",
+            "0123456789abcdefghij"
+    };
+    private static final long[][] EXPECTED = {
+            {0x0000000000000000L, 0x0000000000000000L},
+            {0x85555565f6597889L, 0xe6b53a48510e895aL},
+            {0xb4963f3f3fad7867L, 0x3ba2744126ca2d52L},
+            {0x342fac623a5ebc8eL, 0x4cdcbc079642414dL},
+            {0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L},
+            {0xe4c83e24f076a3fdL, 0xf99c8c583a8fa8d7L}
+    };
+
+    @Test
+    public void bytesMatchReferenceHashes() throws Exception {
+        for (int i = 0; i < INPUTS.length; i++) {
+            byte[] bytes = utf8(INPUTS[i]);
+            assertKey(new KeyHasher().putBytes(bytes, 0, bytes.length).build(), EXPECTED[i]);
+        }
+    }
+
+    @Test
+    public void singleBytesMatchReferenceHashes() throws Exception {
+        for (int i = 0; i < INPUTS.length; i++) {
+            KeyHasher hasher = new KeyHasher();
+            for (byte value : utf8(INPUTS[i])) {
+                hasher.putByte(value);
+            }
+            assertKey(hasher.build(), EXPECTED[i]);
+        }
+    }
+
+    @Test
+    public void charsMatchReferenceHashes() {
+        // Guava's hashUnencodedChars, chars fed as little endian UTF-16
+        String hello = "hello, world";
+        String fox = "The quick brown fox jumps over the lazy dog";
+        assertKey(new KeyHasher().putChars(hello, 0, hello.length()).build(),
+                new long[]{0xab1d1e4201172011L, 0xcbdca77b2455e947L});
+        assertKey(new KeyHasher().putChars(fox, 0, fox.length()).build(),
+                new long[]{0xc0026631b551ae4cL, 0xe75f3e8442567c1cL});
+    }
+
+    @Test
+    public void mixedWidthsMatchReferenceHash() {
+        // Guava's putByte, putChar, putInt, putLong and putUnencodedChars, leaving every value unaligned
+        CacheKey key = new KeyHasher()
+                .putByte((byte) 1)
+                .putChar('x')
+                .putInt(0x12345678)
+                .putLong(0x1122334455667788L)
+                .putChars("key", 0, 3)
+                .build();
+        assertKey(key, new long[]{0xa93f795bed57ea4eL, 0xa64a2d0cfd841d4cL});
+    }
+
+    @Test
+    public void splitFeedsMatchWholeFeed() throws Exception {
+        byte[] bytes = utf8(INPUTS[4]);
+        CacheKey whole = new KeyHasher().putBytes(bytes, 0, bytes.length).build();
+        for (int split = 0; split <= bytes.length; split++) {
+            CacheKey key = new KeyHasher()
+                    .putBytes(bytes, 0, split)
+                    .putBytes(bytes, split, bytes.length - split)
+                    .build();
+            assertThat(key).isEqualTo(whole);
+        }
+    }
+
+    @Test
+    public void valuesAtEveryOffsetMatchTheirBytes() {
+        String chars = "0123456789abcdefghij";
+        for (int offset = 0; offset < 16; offset++) {
+            KeyHasher values = new KeyHasher();
+            KeyHasher bytes = new KeyHasher();
+            for (int i = 0; i < offset; i++) {
+                values.putByte((byte) i);
+                bytes.putByte((byte) i);
+            }
+            values.putChar('\u20ac').putInt(0xcafebabe).putLong(0x0102030405060708L).putChars(chars, 0, chars.length());
+
+            byte[] expected = new byte[2 + 4 + 8 + chars.length() * 2];
+            writeLittleEndian(expected, 0, '\u20ac', 2);
+            writeLittleEndian(expected, 2, 0xcafebabeL, 4);
+            writeLittleEndian(expected, 6, 0x0102030405060708L, 8);
+            for (int i = 0; i < chars.length(); i++) {
+                writeLittleEndian(expected, 14 + i * 2, chars.charAt(i), 2);
+            }
+            bytes.putBytes(expected, 0, expected.length);
+
+            assertThat(values.build()).isEqualTo(bytes.build());
+        }
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        byte[] bytes = utf8(INPUTS[3]);
+        KeyHasher hasher = new KeyHasher().putBytes(bytes, 0, 5);
+        assertKey(hasher.reset().putBytes(bytes, 0, bytes.length).build(), EXPECTED[3]);
+    }
+
+    @Test
+    public void lengthPrefixSeparatesStrings() {
+        CacheKey first = new KeyHasher().putString("ab").putString("c").build();
+        CacheKey second = new KeyHasher().putString("a").putString("bc").build();
+        assertThat(first).isNotEqualTo(second);
+        assertThat(new KeyHasher().putString(null).build()).isNotEqualTo(new KeyHasher().putString("").build());
+    }
+
+    private static void assertKey(CacheKey key, long[] expected) {
+        assertThat(key.high()).isEqualTo(expected[0]);
+        assertThat(key.low()).isEqualTo(expected[1]);
+    }
+
+    private static void writeLittleEndian(byte[] bytes, int offset, long value, int width) {
+        for (int i = 0; i < width; i++) {
+            bytes[offset + i] = (byte) (value >>> (i << 3));
+        }
+    }
+
+    private static byte[] utf8(String string) throws UnsupportedEncodingException {
+        return string.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,55 @@
+package com.andiag.retrocache.rxjava2;
+
+import com.andiag.commons.CacheConverter;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.XFetch;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.key.KeyComposer;
+import com.iagocanalejas.dualcache.interfaces.Cache;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import retrofit2.Retrofit;
+
+/**
+ * Cache settings of a service method, resolved once from its annotations and shared by every
+ * call the adapter creates.
+ */
+final class CacheSettings<T> {
+    final Cache<String, byte[]> mCachingSystem;
+    final KeyComposer mKeys;
+    final CacheIndex.Writer mIndexWriter;
+    final ResponseCapture mCapture;
+    final SingleFlight mFlights;
+    final CacheConverter<T> mConverter;
+    final long mTtlMillis;
+    final long mNegativeTtlMillis;
+    final long mStaleIfErrorMillis;
+    final boolean mCacheThenNetwork;
+    final XFetch mXFetch;
+    final okhttp3.Call.Factory mCallFactory;
+
+    /**
+     * @param factory whose cache, shared by every service method, is partitioned for this one.
+     * @param capture null if raw bodies can't be captured for this method.
+     */
+    CacheSettings(RxJava2CachedCallAdapterFactory factory, ResponseCapture capture, Type responseType, Retrofit retrofit,
+                  Annotation[] annotations) {
+        this.mCachingSystem = PartitionedCache.select(factory.mCachingSystem, annotations, responseType, factory.mRouter);
+        this.mKeys = CacheUtils.keyComposer(annotations, factory.mNormalizer);
+        this.mIndexWriter = factory.mIndex.writer(annotations, mKeys);
+        this.mCapture = capture;
+        this.mFlights = factory.mFlights;
+        this.mConverter = CacheConverter.create(retrofit, responseType, annotations);
+        this.mTtlMillis = CacheUtils.ttlMillis(annotations);
+        this.mNegativeTtlMillis = CacheUtils.negativeTtlMillis(annotations);
+        this.mStaleIfErrorMillis = CacheUtils.staleIfErrorMillis(annotations);
+        this.mCacheThenNetwork = CacheUtils.findAnnotation(annotations, CacheThenNetwork.class) != null;
+        this.mXFetch = XFetch.create(annotations, retrofit.callFactory(), mCachingSystem, mIndexWriter, mTtlMillis);
+        this.mCallFactory = retrofit.callFactory();
+    }
+}
@@ -0,0 +1,20 @@
+package com.andiag.retrocache.rxjava2;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Emit the cached response of a service method right away, even if it expired, and then the
+ * network response when it arrives. The network response is not emitted if its body is the same
+ * as the cached one, so subscribers get one or two values.
+ * <p>
+ * Only {@code Observable} and {@code Flowable} return types can carry both values.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheThenNetwork {
+}
@@ -15,11 +15,19 @@
  */
 package com.andiag.retrocache.rxjava2;
 
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CacheConverter;
 import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.XFetch;
+import com.andiag.commons.cache.CacheEntry;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.key.KeyComposer;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Type;
+import java.io.IOException;
 
 import io.reactivex.Observable;
 import io.reactivex.Observer;
@@ -27,109 +35,377 @@ import io.reactivex.disposables.Disposable;
 import io.reactivex.exceptions.CompositeException;
 import io.reactivex.exceptions.Exceptions;
 import io.reactivex.plugins.RxJavaPlugins;
+import okhttp3.Request;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 
 final class CallEnqueueObservable<T> extends Observable<Response<T>> {
-    private final Retrofit mRetrofit;
+    private final CacheSettings<T> mSettings;
     private final Cache<String, byte[]> mCachingSystem;
+    private final CacheIndex.Writer mIndexWriter;
+    private final ResponseCapture mCapture;
     private final Call<T> mOriginalCall;
-
-    private final Type mResponseType;
-    private final Annotation[] mAnnotations;
+    private final CacheConverter<T> mConverter;
+    private final SingleFlight mFlights;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final long mStaleIfErrorMillis;
+    private final boolean mCacheThenNetwork;
+    private final XFetch mXFetch;
+    private final KeyComposer mKeys;
+    private final Request mRequest;
 
     private final boolean mCachingActive;
+    private volatile String mKey;
 
-    CallEnqueueObservable(Cache<String, byte[]> cachingSystem, Call<T> originalCall, Type responseType, Annotation[] annotations, Retrofit retrofit) {
+    CallEnqueueObservable(CacheSettings<T> settings, Call<T> originalCall) {
+        this.mSettings = settings;
         this.mOriginalCall = originalCall;
-        this.mCachingSystem = cachingSystem;
-        this.mAnnotations = annotations;
-        this.mResponseType = responseType;
-        this.mRetrofit = retrofit;
+        this.mCachingSystem = settings.mCachingSystem;
+        this.mIndexWriter = settings.mIndexWriter;
+        this.mCapture = settings.mCapture;
+        this.mConverter = settings.mConverter;
+        this.mFlights = settings.mFlights;
+        this.mTtlMillis = settings.mTtlMillis;
+        this.mNegativeTtlMillis = settings.mNegativeTtlMillis;
+        this.mStaleIfErrorMillis = settings.mStaleIfErrorMillis;
+        this.mCacheThenNetwork = settings.mCacheThenNetwork;
+        this.mXFetch = settings.mXFetch;
+        this.mKeys = settings.mKeys;
+
+        // Built once, each subscription executes a clone
+        this.mRequest = CacheUtils.request(mOriginalCall);
+        this.mCachingActive = mRequest != null && mKeys.isCached(mRequest);
+    }
 
-        this.mCachingActive = mOriginalCall.request() != null && mOriginalCall.request().method().equals("GET");
+    /**
+     * @return cache key of the request, computed on first use since the keys of
+     * {@link com.andiag.commons.CacheablePost} methods hash the whole body.
+     */
+    private String key() {
+        String key = mKey;
+        if (key == null) {
+            key = mKeys.key(mRequest).toString();
+            mKey = key;
+        }
+        return key;
     }
 
     @Override
     protected void subscribeActual(Observer<? super Response<T>> observer) {
-        if (mCachingActive && mCachingSystem.contains(CacheUtils.urlToKey(mOriginalCall.request().url()))) {
-            byte[] data = mCachingSystem.get(CacheUtils.urlToKey(mOriginalCall.request().url()));
-            if (data != null) {
-                final T convertedData = CacheUtils.bytesToResponse(mRetrofit, mResponseType, mAnnotations, data);
-                observer.onNext(Response.success(convertedData));
+        CacheEntry stale = null;
+        CacheEntry emitted = null;
+        CacheEntry expired = null;
+        if (mCachingActive) {
+            byte[] data = mCachingSystem.get(key());
+            // Expired entries are rejected without decoding them
+            CacheEntry entry = data != null ? CacheEntry.parse(data) : null;
+            if (entry != null && mCacheThenNetwork && !entry.isError()) {
+                // Emitted even if expired, the network response follows
+                emitted = entry;
+            } else if (entry != null && entry.isFresh()) {
+                if (mXFetch != null) {
+                    mXFetch.refreshIfDue(mRequest, key(), entry);
+                }
+                observer.onNext(entry.isError()
+                        ? entry.<T>error(mRequest) : Response.success(mConverter.fromEntry(entry)));
                 observer.onComplete();
+                return;
+            }
+            if (entry != null && emitted == null && mStaleIfErrorMillis > 0) {
+                // Served if the network fails, unless it was already emitted
+                stale = entry;
+            }
+            if (entry != null && emitted == null && entry.hasValidators()) {
+                // Revalidated with a conditional request
+                expired = entry;
             }
-            return;
         }
         // Since Call is a one-shot type, clone it for each new mObserver.
         Call<T> call = mOriginalCall.clone();
-        CallCallback<T> callback = new CallCallback<>(call, observer, mCachingSystem, mResponseType, mAnnotations, mRetrofit, mCachingActive);
+        ResponseCapture capture = mCachingActive ? mCapture : null;
+        CallCallback<T> callback = new CallCallback<>(call, observer, mCachingSystem, mIndexWriter, capture, mConverter,
+                mCachingActive ? key() : null,
+                mTtlMillis, mNegativeTtlMillis, stale, mStaleIfErrorMillis, emitted, mXFetch);
         observer.onSubscribe(callback);
-        call.enqueue(callback);
+        if (emitted != null && !callback.emitCached()) {
+            return;
+        }
+        if (expired != null) {
+            callback.revalidate(new Revalidation<>(mSettings, mRequest, key(), expired));
+            return;
+        }
+        if (mCachingActive) {
+            // Concurrent subscribers for the same key share the request
+            SingleFlight.Member member = mFlights.join(key(), callback);
+            callback.setMember(member);
+            if (!member.isLeader()) {
+                return;
+            }
+            member.attach(call);
+        }
+        callback.enqueue();
     }
 
-    private static final class CallCallback<T> implements Disposable, Callback<T> {
-        private final Call<?> mCall;
+    private static final class CallCallback<T> implements Disposable, Callback<T>, SingleFlight.Listener {
+        private final Call<T> mCall;
         private final Observer<? super Response<T>> mObserver;
         private final Cache<String, byte[]> mCachingSystem;
+        private final CacheIndex.Writer mIndexWriter;
+        private final ResponseCapture mCapture;
+        private final String mKey;
         private final boolean mCachingActive;
-        private final Retrofit mRetrofit;
-        private final Type mResponseType;
-        private final Annotation[] mAnnotations;
+        private final CacheConverter<T> mConverter;
+        private final long mTtlMillis;
+        private final long mNegativeTtlMillis;
+        private final CacheEntry mStale;
+        private final long mStaleIfErrorMillis;
+        private final CacheEntry mEmitted;
+        private final XFetch mXFetch;
+        private volatile SingleFlight.Member mMember;
+        private volatile okhttp3.Call mRawCall;
+        private volatile boolean mDisposed;
         boolean mTerminated = false;
 
-        CallCallback(Call<?> call, Observer<? super Response<T>> observer, Cache<String, byte[]> cachingSystem, Type responseType,
-                     Annotation[] annotations, Retrofit retrofit, boolean cachingActive) {
+        CallCallback(Call<T> call, Observer<? super Response<T>> observer, Cache<String, byte[]> cachingSystem,
+                     CacheIndex.Writer indexWriter, ResponseCapture capture,
+                     CacheConverter<T> converter, String key, long ttlMillis, long negativeTtlMillis,
+                     CacheEntry stale, long staleIfErrorMillis, CacheEntry emitted, XFetch xFetch) {
 
             this.mCall = call;
             this.mObserver = observer;
             this.mCachingSystem = cachingSystem;
-            this.mAnnotations = annotations;
-            this.mResponseType = responseType;
-            this.mRetrofit = retrofit;
-            this.mCachingActive = cachingActive;
+            this.mIndexWriter = indexWriter;
+            this.mCapture = capture;
+            this.mConverter = converter;
+            this.mKey = key;
+            this.mCachingActive = key != null;
+            this.mTtlMillis = ttlMillis;
+            this.mNegativeTtlMillis = negativeTtlMillis;
+            this.mStale = stale;
+            this.mStaleIfErrorMillis = staleIfErrorMillis;
+            this.mEmitted = emitted;
+            this.mXFetch = xFetch;
+        }
+
+        void setMember(SingleFlight.Member member) {
+            mMember = member;
+            if (mDisposed) {
+                // Disposed while joining
+                member.cancel();
+            }
+        }
+
+        void enqueue() {
+            if (mCapture != null) {
+                mCapture.expect(mCall.request());
+            }
+            mCall.enqueue(this);
+        }
+
+        /**
+         * Enqueue the conditional request of an expired entry instead of the call.
+         */
+        void revalidate(final Revalidation<T> revalidation) {
+            okhttp3.Call rawCall = revalidation.call();
+            mRawCall = rawCall;
+            if (isDisposed()) {
+                return;
+            }
+            rawCall.enqueue(new okhttp3.Callback() {
+                @Override
+                public void onResponse(okhttp3.Call call, okhttp3.Response rawResponse) {
+                    Response<T> response;
+                    try {
+                        response = revalidation.response(rawResponse);
+                    } catch (Throwable t) {
+                        Exceptions.throwIfFatal(t);
+                        if (!isDisposed()) {
+                            error(t);
+                        }
+                        return;
+                    }
+                    if (isDisposed() || response.code() >= 500 && deliverStale()) {
+                        return;
+                    }
+                    deliver(response);
+                }
+
+                @Override
+                public void onFailure(okhttp3.Call call, IOException exc) {
+                    if (isDisposed() || deliverStale()) {
+                        return;
+                    }
+                    error(exc);
+                }
+            });
+        }
+
+        private boolean isLeader() {
+            SingleFlight.Member member = mMember;
+            return member != null && member.isLeader();
+        }
+
+        /**
+         * Cache an entry and index it for invalidation.
+         */
+        private void put(Call<T> call, okhttp3.Response rawResponse, byte[] stored) {
+            if (mXFetch != null) {
+                mXFetch.record(rawResponse);
+            }
+            mCachingSystem.put(mKey, stored);
+            mIndexWriter.put(mKey, call.request().url());
         }
 
         @Override
         public void onResponse(Call<T> call, Response<T> response) {
-            if (call.isCanceled()) {
+            byte[] captured = mCapture != null ? mCapture.take(call.request()) : null;
+
+            byte[] data = null;
+            byte[] stored = null;
+            if (mCachingActive && response.isSuccessful()) {
+                data = captured != null
+                        ? captured : mConverter.toBytes(response.body());
+                if (data != null) {
+                    stored = CacheEntry.encode(data, response.raw(), mTtlMillis);
+                    put(call, response.raw(), stored);
+                }
+            } else if (mCachingActive && mNegativeTtlMillis > 0 && CacheEntry.isCacheableError(response.code())) {
+                byte[] error = CacheUtils.errorBytes(response);
+                if (error != null) {
+                    stored = CacheEntry.encode(error, response.raw(), mNegativeTtlMillis);
+                    put(call, response.raw(), stored);
+                }
+            } else if (!mCachingActive && response.isSuccessful()) {
+                // Mutating calls remove the entries they declare with @Invalidates
+                mIndexWriter.invalidate(call.request().url());
+            }
+            if (isLeader()) {
+                mMember.complete(stored != null || response.isSuccessful() ? stored : CacheUtils.sharedError(response));
+            }
+
+            if (isDisposed() || response.code() >= 500 && deliverStale()) {
+                return;
+            }
+            if (mEmitted != null && response.isSuccessful() && mEmitted.hasBody(data)) {
+                // Same body as the cached response already emitted
+                complete();
+                return;
+            }
+            deliver(response);
+        }
+
+        @Override
+        public void onFailure(Call<T> call, Throwable t) {
+            if (mCapture != null) {
+                mCapture.take(call.request());
+            }
+            if (isLeader()) {
+                mMember.fail(t);
+            }
+            if (isDisposed() || deliverStale()) {
+                return;
+            }
+            error(t);
+        }
+
+        @Override
+        public void onShared(@NonNull byte[] stored) {
+            if (isDisposed()) {
                 return;
             }
+            CacheEntry entry = CacheEntry.parse(stored);
+            if (entry.isError()) {
+                Response<T> response = entry.error(mCall.request());
+                if (response.code() < 500 || !deliverStale()) {
+                    deliver(response);
+                }
+                return;
+            }
+            if (mEmitted != null && mEmitted.hasBody(entry)) {
+                complete();
+                return;
+            }
+            deliver(Response.success(mConverter.fromEntry(entry)));
+        }
+
+        @Override
+        public void onUnavailable() {
+            if (!isDisposed()) {
+                // The shared response can't be reused, make our own request
+                enqueue();
+            }
+        }
+
+        @Override
+        public void onFailure(@NonNull Throwable t) {
+            if (!isDisposed() && !deliverStale()) {
+                error(t);
+            }
+        }
+
+        /**
+         * Deliver the expired entry instead of a network error.
+         *
+         * @return true if delivered.
+         */
+        private boolean deliverStale() {
+            if (mStale == null || !mStale.isUsableIfError(mStaleIfErrorMillis)) {
+                return false;
+            }
+            deliver(mStale.<T>stale(mConverter.fromEntry(mStale), mCall.request()));
+            return true;
+        }
+
+        /**
+         * Emit the cached response before the network one.
+         *
+         * @return false if the observer failed or was disposed, there is nothing left to emit.
+         */
+        boolean emitCached() {
+            if (isDisposed()) {
+                return false;
+            }
+            try {
+                mObserver.onNext(Response.success(mConverter.fromEntry(mEmitted)));
+            } catch (Throwable t) {
+                Exceptions.throwIfFatal(t);
+                mDisposed = true;
+                error(t);
+                return false;
+            }
+            return !isDisposed();
+        }
 
-            if (mCachingActive) {
-                mCachingSystem.put(
-                        CacheUtils.urlToKey(call.request().url()), CacheUtils.responseToBytes(mRetrofit, response, mResponseType, mAnnotations));
+        private void complete() {
+            mTerminated = true;
+            try {
+                mObserver.onComplete();
+            } catch (Throwable t) {
+                Exceptions.throwIfFatal(t);
+                RxJavaPlugins.onError(t);
             }
+        }
 
+        private void deliver(Response<T> response) {
             try {
                 mObserver.onNext(response);
 
-                if (!call.isCanceled()) {
+                if (!isDisposed()) {
                     mTerminated = true;
                     mObserver.onComplete();
                 }
             } catch (Throwable t) {
                 if (mTerminated) {
                     RxJavaPlugins.onError(t);
-                } else if (!call.isCanceled()) {
-                    try {
-                        mObserver.onError(t);
-                    } catch (Throwable inner) {
-                        Exceptions.throwIfFatal(inner);
-                        RxJavaPlugins.onError(new CompositeException(t, inner));
-                    }
+                } else if (!isDisposed()) {
+                    error(t);
                 }
             }
         }
 
-        @Override
-        public void onFailure(Call<T> call, Throwable t) {
-            if (call.isCanceled()) {
-                return;
-            }
-
+        private void error(Throwable t) {
             try {
                 mObserver.onError(t);
             } catch (Throwable inner) {
@@ -140,12 +416,25 @@ final class CallEnqueueObservable<T> extends Observable<Response<T>> {
 
         @Override
         public void dispose() {
+            mDisposed = true;
+            okhttp3.Call rawCall = mRawCall;
+            if (rawCall != null) {
+                rawCall.cancel();
+            }
+            SingleFlight.Member member = mMember;
+            if (member != null) {
+                // A shared request is only cancelled when no other subscriber waits for it
+                member.cancel();
+                if (member.isLeader()) {
+                    return;
+                }
+            }
             mCall.cancel();
         }
 
         @Override
         public boolean isDisposed() {
-            return mCall.isCanceled();
+            return mDisposed || mCall.isCanceled();
         }
     }
 }
@@ -15,12 +15,18 @@
  */
 package com.andiag.retrocache.rxjava2;
 
+import com.andiag.commons.CacheConverter;
 import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.XFetch;
+import com.andiag.commons.cache.CacheEntry;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.key.KeyComposer;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Type;
+import java.io.InterruptedIOException;
 
 import io.reactivex.Observable;
 import io.reactivex.Observer;
@@ -28,40 +34,213 @@ import io.reactivex.disposables.Disposable;
 import io.reactivex.exceptions.CompositeException;
 import io.reactivex.exceptions.Exceptions;
 import io.reactivex.plugins.RxJavaPlugins;
+import okhttp3.Request;
 import retrofit2.Call;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 
 final class CallExecuteObservable<T> extends Observable<Response<T>> {
-    private final Retrofit mRetrofit;
+    private final CacheSettings<T> mSettings;
     private final Cache<String, byte[]> mCachingSystem;
+    private final CacheIndex.Writer mIndexWriter;
+    private final ResponseCapture mCapture;
     private final Call<T> mOriginalCall;
-
-    private final Type mResponseType;
-    private final Annotation[] mAnnotations;
+    private final CacheConverter<T> mConverter;
+    private final SingleFlight mFlights;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final long mStaleIfErrorMillis;
+    private final boolean mCacheThenNetwork;
+    private final XFetch mXFetch;
+    private final KeyComposer mKeys;
+    private final Request mRequest;
 
     private final boolean mCachingActive;
+    private volatile String mKey;
 
-    CallExecuteObservable(Cache<String, byte[]> cachingSystem, Call<T> originalCall, Type responseType, Annotation[] annotations, Retrofit retrofit) {
+    CallExecuteObservable(CacheSettings<T> settings, Call<T> originalCall) {
+        this.mSettings = settings;
         this.mOriginalCall = originalCall;
-        this.mCachingSystem = cachingSystem;
-        this.mAnnotations = annotations;
-        this.mResponseType = responseType;
-        this.mRetrofit = retrofit;
+        this.mCachingSystem = settings.mCachingSystem;
+        this.mIndexWriter = settings.mIndexWriter;
+        this.mCapture = settings.mCapture;
+        this.mConverter = settings.mConverter;
+        this.mFlights = settings.mFlights;
+        this.mTtlMillis = settings.mTtlMillis;
+        this.mNegativeTtlMillis = settings.mNegativeTtlMillis;
+        this.mStaleIfErrorMillis = settings.mStaleIfErrorMillis;
+        this.mCacheThenNetwork = settings.mCacheThenNetwork;
+        this.mXFetch = settings.mXFetch;
+        this.mKeys = settings.mKeys;
+
+        // Built once, each subscription executes a clone
+        this.mRequest = CacheUtils.request(mOriginalCall);
+        this.mCachingActive = mRequest != null && mKeys.isCached(mRequest);
+    }
+
+    /**
+     * @return cache key of the request, computed on first use since the keys of
+     * {@link com.andiag.commons.CacheablePost} methods hash the whole body.
+     */
+    private String key() {
+        String key = mKey;
+        if (key == null) {
+            key = mKeys.key(mRequest).toString();
+            mKey = key;
+        }
+        return key;
+    }
+
+
+    /**
+     * @return cached entry, null if there is none.
+     */
+    private CacheEntry cachedEntry() {
+        if (!mCachingActive) {
+            return null;
+        }
+        byte[] data = mCachingSystem.get(key());
+        return data != null ? CacheEntry.parse(data) : null;
+    }
+
+    private Response<T> getResponse(Call<T> call, CallDisposable disposable, CacheEntry entry) throws IOException {
+        if (!mCachingActive) {
+            return networkLoad(call, null, null);
+        }
+        // Expired entries are rejected without decoding them
+        if (entry != null && entry.isFresh()) {
+            if (mXFetch != null) {
+                mXFetch.refreshIfDue(mRequest, key(), entry);
+            }
+            return entry.isError()
+                    ? entry.<T>error(mRequest) : Response.success(mConverter.fromEntry(entry));
+        }
+
+        Response<T> response;
+        try {
+            response = entry != null && entry.hasValidators()
+                    ? conditionalLoad(disposable, entry) : sharedLoad(call, disposable, null);
+        } catch (IOException exc) {
+            Response<T> stale = staleResponse(entry);
+            if (stale == null) {
+                throw exc;
+            }
+            return stale;
+        }
+        Response<T> stale = response.code() >= 500 ? staleResponse(entry) : null;
+        return stale != null ? stale : response;
+    }
+
+    /**
+     * Revalidate an expired entry with a conditional request.
+     */
+    private Response<T> conditionalLoad(CallDisposable disposable, CacheEntry entry) throws IOException {
+        Revalidation<T> revalidation = new Revalidation<>(mSettings, mRequest, key(), entry);
+        disposable.setRawCall(revalidation.call());
+        return revalidation.response(revalidation.call().execute());
+    }
+
+    /**
+     * @param entry expired entry, if any.
+     * @return the entry to serve instead of a network error, null if it can't be served.
+     */
+    private Response<T> staleResponse(CacheEntry entry) {
+        if (entry == null || mStaleIfErrorMillis <= 0 || !entry.isUsableIfError(mStaleIfErrorMillis)) {
+            return null;
+        }
+        return entry.stale(mConverter.fromEntry(entry), mRequest);
+    }
+
+    /**
+     * Attach to the request in flight for the same key, or start it if there is none.
+     *
+     * @param emitted cached entry already emitted, if any.
+     * @return null if the response has the same body as {@code emitted}.
+     */
+    private Response<T> sharedLoad(Call<T> call, CallDisposable disposable, CacheEntry emitted) throws IOException {
+        SingleFlight.BlockingListener listener = new SingleFlight.BlockingListener();
+        SingleFlight.Member member = mFlights.join(key(), listener);
+        disposable.setMember(member);
+        if (member.isLeader()) {
+            member.attach(call);
+            return networkLoad(call, member, emitted);
+        }
 
-        this.mCachingActive = mOriginalCall.request() != null && mOriginalCall.request().method().equals("GET");
+        byte[] stored;
+        try {
+            stored = listener.await();
+        } catch (InterruptedIOException exc) {
+            member.cancel();
+            throw exc;
+        }
+        if (stored == null) {
+            return networkLoad(call, null, emitted);
+        }
+        CacheEntry entry = CacheEntry.parse(stored);
+        if (entry.isError()) {
+            return entry.error(mRequest);
+        }
+        return emitted != null && emitted.hasBody(entry) ? null : Response.success(mConverter.fromEntry(entry));
     }
 
+    /**
+     * @param member  leading the shared request, null if it is not shared.
+     * @param emitted cached entry already emitted, if any.
+     * @return null if the response has the same body as {@code emitted}.
+     */
+    private Response<T> networkLoad(Call<T> call, SingleFlight.Member member, CacheEntry emitted) throws IOException {
+        ResponseCapture capture = mCachingActive ? mCapture : null;
+        if (capture != null) {
+            capture.expect(call.request());
+        }
+        Response<T> response;
+        try {
+            response = call.execute();
+        } catch (IOException | RuntimeException | Error exc) {
+            if (capture != null) {
+                capture.take(call.request());
+            }
+            if (member != null) {
+                member.fail(exc);
+            }
+            throw exc;
+        }
 
-    private Response<T> getResponse(Call<T> call) throws IOException {
-        if (mCachingActive && mCachingSystem.contains(CacheUtils.urlToKey(mOriginalCall.request().url()))) {
-            byte[] data = mCachingSystem.get(CacheUtils.urlToKey(mOriginalCall.request().url()));
+        byte[] captured = capture != null ? capture.take(call.request()) : null;
+        byte[] data = null;
+        byte[] stored = null;
+        if (mCachingActive && response.isSuccessful()) {
+            data = captured != null
+                    ? captured : mConverter.toBytes(response.body());
             if (data != null) {
-                final T convertedData = CacheUtils.bytesToResponse(mRetrofit, mResponseType, mAnnotations, data);
-                return Response.success(convertedData);
+                stored = CacheEntry.encode(data, response.raw(), mTtlMillis);
+                put(call, response.raw(), stored);
             }
+        } else if (mCachingActive && mNegativeTtlMillis > 0 && CacheEntry.isCacheableError(response.code())) {
+            byte[] error = CacheUtils.errorBytes(response);
+            if (error != null) {
+                stored = CacheEntry.encode(error, response.raw(), mNegativeTtlMillis);
+                put(call, response.raw(), stored);
+            }
+        } else if (!mCachingActive && response.isSuccessful()) {
+            // Mutating calls remove the entries they declare with @Invalidates
+            mIndexWriter.invalidate(call.request().url());
+        }
+        if (member != null) {
+            member.complete(stored != null || response.isSuccessful() ? stored : CacheUtils.sharedError(response));
         }
-        return call.execute();
+        return emitted != null && response.isSuccessful() && emitted.hasBody(data) ? null : response;
+    }
+
+    /**
+     * Cache an entry and index it for invalidation.
+     */
+    private void put(Call<T> call, okhttp3.Response rawResponse, byte[] stored) {
+        String key = key();
+        if (mXFetch != null) {
+            mXFetch.record(rawResponse);
+        }
+        mCachingSystem.put(key, stored);
+        mIndexWriter.put(key, call.request().url());
     }
 
 
@@ -69,19 +248,26 @@ final class CallExecuteObservable<T> extends Observable<Response<T>> {
     protected void subscribeActual(Observer<? super Response<T>> observer) {
         // Since Call is a one-shot type, clone it for each new observer.
         Call<T> call = mOriginalCall.clone();
-        observer.onSubscribe(new CallDisposable(call));
+        CallDisposable disposable = new CallDisposable(call);
+        observer.onSubscribe(disposable);
 
         boolean terminated = false;
         try {
-            Response<T> response = getResponse(call);
-            if (mCachingActive && !mCachingSystem.contains(CacheUtils.urlToKey(mOriginalCall.request().url()))) {
-                mCachingSystem.put(
-                        CacheUtils.urlToKey(call.request().url()), CacheUtils.responseToBytes(mRetrofit, response, mResponseType, mAnnotations));
+            CacheEntry entry = cachedEntry();
+            Response<T> response;
+            if (entry != null && mCacheThenNetwork && !entry.isError()) {
+                // Emitted even if expired, the network response follows
+                if (!disposable.isDisposed()) {
+                    observer.onNext(Response.success(mConverter.fromEntry(entry)));
+                }
+                response = disposable.isDisposed() ? null : sharedLoad(call, disposable, entry);
+            } else {
+                response = getResponse(call, disposable, entry);
             }
-            if (!call.isCanceled()) {
+            if (response != null && !disposable.isDisposed()) {
                 observer.onNext(response);
             }
-            if (!call.isCanceled()) {
+            if (!disposable.isDisposed()) {
                 terminated = true;
                 observer.onComplete();
             }
@@ -89,7 +275,7 @@ final class CallExecuteObservable<T> extends Observable<Response<T>> {
             Exceptions.throwIfFatal(t);
             if (terminated) {
                 RxJavaPlugins.onError(t);
-            } else if (!call.isCanceled()) {
+            } else if (!disposable.isDisposed()) {
                 try {
                     observer.onError(t);
                 } catch (Throwable inner) {
@@ -102,19 +288,51 @@ final class CallExecuteObservable<T> extends Observable<Response<T>> {
 
     private static final class CallDisposable implements Disposable {
         private final Call<?> mCall;
+        private volatile SingleFlight.Member mMember;
+        private volatile okhttp3.Call mRawCall;
+        private volatile boolean mDisposed;
 
         CallDisposable(Call<?> call) {
             this.mCall = call;
         }
 
+        void setMember(SingleFlight.Member member) {
+            mMember = member;
+            if (mDisposed) {
+                // Disposed while joining
+                member.cancel();
+            }
+        }
+
+        void setRawCall(okhttp3.Call call) {
+            mRawCall = call;
+            if (mDisposed) {
+                // Disposed while creating it
+                call.cancel();
+            }
+        }
+
         @Override
         public void dispose() {
+            mDisposed = true;
+            okhttp3.Call rawCall = mRawCall;
+            if (rawCall != null) {
+                rawCall.cancel();
+            }
+            SingleFlight.Member member = mMember;
+            if (member != null) {
+                // A shared request is only cancelled when no other subscriber waits for it
+                member.cancel();
+                if (member.isLeader()) {
+                    return;
+                }
+            }
             mCall.cancel();
         }
 
         @Override
         public boolean isDisposed() {
-            return mCall.isCanceled();
+            return mDisposed || mCall.isCanceled();
         }
     }
 }
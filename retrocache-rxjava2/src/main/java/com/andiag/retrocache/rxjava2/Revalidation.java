@@ -0,0 +1,79 @@
+package com.andiag.retrocache.rxjava2;
+
+import com.andiag.commons.cache.CacheEntry;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Conditional request for an expired entry with validators. It goes straight to the
+ * {@link okhttp3.Call.Factory} so a {@code 304 Not Modified} reuses the cached body instead of
+ * downloading it again.
+ */
+final class Revalidation<T> {
+    private final CacheSettings<T> mSettings;
+    private final String mKey;
+    private final CacheEntry mEntry;
+    private final okhttp3.Call mCall;
+
+    /**
+     * @param request of the service method call.
+     * @param key     of the expired entry.
+     * @param entry   expired entry with validators.
+     */
+    Revalidation(CacheSettings<T> settings, Request request, String key, CacheEntry entry) {
+        this.mSettings = settings;
+        this.mKey = key;
+        this.mEntry = entry;
+        this.mCall = settings.mCallFactory.newCall(entry.conditional(request));
+    }
+
+    okhttp3.Call call() {
+        return mCall;
+    }
+
+    /**
+     * Convert the response to the conditional request like Retrofit does, caching it if it
+     * changed.
+     */
+    Response<T> response(okhttp3.Response rawResponse) throws IOException {
+        byte[] data;
+        MediaType contentType;
+        try {
+            if (rawResponse.code() == 304) {
+                put(rawResponse, mEntry.revalidated(rawResponse, mSettings.mTtlMillis));
+                return Response.success(mSettings.mConverter.fromEntry(mEntry));
+            }
+            contentType = rawResponse.body().contentType();
+            data = rawResponse.body().bytes();
+        } finally {
+            rawResponse.close();
+        }
+
+        okhttp3.Response metadata = rawResponse.newBuilder().body(null).build();
+        if (!rawResponse.isSuccessful()) {
+            return Response.error(ResponseBody.create(contentType, data), metadata);
+        }
+        if (rawResponse.code() == 204 || rawResponse.code() == 205) {
+            return Response.success(null, metadata);
+        }
+        T body = mSettings.mConverter.fromBytes(data);
+        if (body == null) {
+            throw new IOException("Unable to decode the response body");
+        }
+        put(rawResponse, CacheEntry.encode(data, rawResponse, mSettings.mTtlMillis));
+        return Response.success(body, metadata);
+    }
+
+    private void put(okhttp3.Response rawResponse, byte[] stored) {
+        if (mSettings.mXFetch != null) {
+            mSettings.mXFetch.record(rawResponse);
+        }
+        mSettings.mCachingSystem.put(mKey, stored);
+        mSettings.mIndexWriter.put(mKey, rawResponse.request().url());
+    }
+}
@@ -15,9 +15,6 @@
  */
 package com.andiag.retrocache.rxjava2;
 
-import com.iagocanalejas.dualcache.interfaces.Cache;
-
-import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 
 import io.reactivex.BackpressureStrategy;
@@ -26,10 +23,9 @@ import io.reactivex.Scheduler;
 import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 
 final class RxJava2CachedCallAdapter<R> implements CallAdapter<R, Object> {
-    private final Cache<String, byte[]> mCachingSystem;
+    private final CacheSettings<R> mSettings;
     private final Type mResponseType;
     private final Scheduler mScheduler;
     private final boolean mAsync;
@@ -39,18 +35,13 @@ final class RxJava2CachedCallAdapter<R> implements CallAdapter<R, Object> {
     private final boolean mSingle;
     private final boolean mMaybe;
     private final boolean mCompletable;
-    private final Retrofit mRetrofit;
-    private final Annotation[] mAnnotations;
 
-    RxJava2CachedCallAdapter(Cache<String, byte[]> cachingSystem, Type responseType, Scheduler scheduler, Retrofit retrofit, Annotation[] annotations,
-                             boolean mAsync, boolean mResult, boolean mBody, boolean mFlowable, boolean mSingle, boolean mMaybe,
-                             boolean mCompletable) {
+    RxJava2CachedCallAdapter(CacheSettings<R> settings, Type responseType, Scheduler scheduler, boolean mAsync, boolean mResult,
+                             boolean mBody, boolean mFlowable, boolean mSingle, boolean mMaybe, boolean mCompletable) {
 
-        this.mCachingSystem = cachingSystem;
+        this.mSettings = settings;
         this.mResponseType = responseType;
         this.mScheduler = scheduler;
-        this.mRetrofit = retrofit;
-        this.mAnnotations = annotations;
         this.mAsync = mAsync;
         this.mResult = mResult;
         this.mBody = mBody;
@@ -68,8 +59,8 @@ final class RxJava2CachedCallAdapter<R> implements CallAdapter<R, Object> {
     @Override
     public Object adapt(Call<R> call) {
         Observable<Response<R>> responseObservable = mAsync
-                ? new CallEnqueueObservable<>(mCachingSystem, call, mResponseType, mAnnotations, mRetrofit)
-                : new CallExecuteObservable<>(mCachingSystem, call, mResponseType, mAnnotations, mRetrofit);
+                ? new CallEnqueueObservable<>(mSettings, call)
+                : new CallExecuteObservable<>(mSettings, call);
 
         Observable<?> observable;
         if (mResult) {
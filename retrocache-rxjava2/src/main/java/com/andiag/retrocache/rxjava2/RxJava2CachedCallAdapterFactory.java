@@ -19,7 +19,13 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
 import com.andiag.commons.RetroCache;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.key.UrlNormalizer;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
 import java.lang.annotation.Annotation;
@@ -32,61 +38,107 @@ import io.reactivex.Maybe;
 import io.reactivex.Observable;
 import io.reactivex.Scheduler;
 import io.reactivex.Single;
+import okhttp3.Interceptor;
 import retrofit2.CallAdapter;
 import retrofit2.Response;
 import retrofit2.Retrofit;
+import retrofit2.http.Streaming;
 
 
 public final class RxJava2CachedCallAdapterFactory extends CallAdapter.Factory {
-    private final Cache<String, byte[]> mCachingSystem;
+    final Cache<String, byte[]> mCachingSystem;
+    final CacheIndex mIndex;
+    final SingleFlight mFlights = new SingleFlight();
+    final PartitionedCache.Router mRouter;
+    final UrlNormalizer mNormalizer;
+    private final ResponseCapture mCapture = new ResponseCapture();
     private final Scheduler mScheduler;
     private final boolean mAsync;
 
-    private RxJava2CachedCallAdapterFactory(@NonNull Cache<String, byte[]> cachingSystem, @Nullable Scheduler scheduler, boolean async) {
-        this.mCachingSystem = cachingSystem;
-        this.mScheduler = scheduler;
-        this.mAsync = async;
+    private RxJava2CachedCallAdapterFactory(Builder builder) {
+        this.mCachingSystem = builder.mCachingSystem;
+        this.mIndex = new CacheIndex(mCachingSystem);
+        this.mRouter = builder.mRouter;
+        this.mNormalizer = builder.mNormalizer;
+        this.mScheduler = builder.mScheduler;
+        this.mAsync = builder.mAsync;
     }
 
     public static RxJava2CachedCallAdapterFactory create(@NonNull Context context, int appVersion) {
-        return new RxJava2CachedCallAdapterFactory(RetroCache.getDualCache(context, appVersion), null, false);
+        return new Builder(RetroCache.getBinaryCache(context, appVersion)).build();
     }
 
     public static RxJava2CachedCallAdapterFactory createAsync(@NonNull Context context, int appVersion) {
-        return new RxJava2CachedCallAdapterFactory(RetroCache.getDualCache(context, appVersion), null, true);
+        return new Builder(RetroCache.getBinaryCache(context, appVersion)).async().build();
     }
 
     public static RxJava2CachedCallAdapterFactory createWithScheduler(@NonNull Context context, int appVersion, Scheduler scheduler) {
-        if (scheduler == null) {
-            throw new NullPointerException("mScheduler == null");
-        }
-        return new RxJava2CachedCallAdapterFactory(RetroCache.getDualCache(context, appVersion), scheduler, false);
+        return new Builder(RetroCache.getBinaryCache(context, appVersion)).scheduler(scheduler).build();
     }
 
     public static RxJava2CachedCallAdapterFactory create(@NonNull Cache<String, byte[]> cachingSystem) {
-        return new RxJava2CachedCallAdapterFactory(cachingSystem, null, false);
+        return new Builder(cachingSystem).build();
     }
 
     public static RxJava2CachedCallAdapterFactory createAsync(@NonNull Cache<String, byte[]> cachingSystem) {
-        return new RxJava2CachedCallAdapterFactory(cachingSystem, null, true);
+        return new Builder(cachingSystem).async().build();
     }
 
     public static RxJava2CachedCallAdapterFactory createWithScheduler(@NonNull Cache<String, byte[]> cachingSystem, Scheduler scheduler) {
-        if (scheduler == null) {
-            throw new NullPointerException("mScheduler == null");
-        }
-        return new RxJava2CachedCallAdapterFactory(cachingSystem, scheduler, false);
+        return new Builder(cachingSystem).scheduler(scheduler).build();
+    }
+
+    /**
+     * Add the returned {@link Interceptor} to the {@link okhttp3.OkHttpClient} used by Retrofit to
+     * cache the response bytes exactly as received. Without it responses are serialized again
+     * with the request body converter before being cached.
+     *
+     * @return {@link Interceptor} capturing response bodies of cached calls.
+     */
+    public Interceptor interceptor() {
+        return mCapture;
+    }
+
+    /**
+     * Remove every cached response whose url path starts with the given segments, for example
+     * {@code "/users/42"} after modifying that user removes {@code /users/42} and
+     * {@code /users/42/repos}. Only responses cached since this factory was created are found.
+     *
+     * @param path decoded url path prefix, including the path of the base url.
+     * @return number of responses removed.
+     */
+    public int invalidatePrefix(@NonNull String path) {
+        return mIndex.invalidatePrefix(path).size();
+    }
+
+    /**
+     * Remove every cached response tagged by {@link com.andiag.commons.CacheTags}. Only responses
+     * cached since this factory was created are found.
+     *
+     * @param tag with its placeholders resolved, {@code "user:42"}.
+     * @return number of responses removed.
+     */
+    public int invalidateTag(@NonNull String tag) {
+        return mIndex.invalidateTag(tag).size();
     }
 
     @Override
     public CallAdapter<?, ?> get(Type returnType, Annotation[] annotations, Retrofit retrofit) {
         Class<?> rawType = getRawType(returnType);
+        // Streaming bodies are read after the call returns so they can't be captured
+        ResponseCapture capture = mCapture.isInstalledIn(retrofit.callFactory())
+                && CacheUtils.findAnnotation(annotations, Streaming.class) == null ? mCapture : null;
+
+        if (CacheUtils.findAnnotation(annotations, CacheThenNetwork.class) != null
+                && (rawType == Completable.class || rawType == Single.class || rawType == Maybe.class)) {
+            throw new IllegalStateException("@CacheThenNetwork requires an Observable or Flowable return type");
+        }
 
         if (rawType == Completable.class) {
             // Completable is not parameterized (which is what the rest of this method deals with) so it
             // can only be created with a single configuration.
-            return new RxJava2CachedCallAdapter(
-                    mCachingSystem, Void.class, mScheduler, retrofit, annotations, mAsync, false, true, false, false, false, true);
+            CacheSettings<?> settings = new CacheSettings<>(this, capture, Void.class, retrofit, annotations);
+            return new RxJava2CachedCallAdapter(settings, Void.class, mScheduler, mAsync, false, true, false, false, false, true);
         }
 
         boolean isFlowable = rawType == Flowable.class;
@@ -124,7 +176,61 @@ public final class RxJava2CachedCallAdapterFactory extends CallAdapter.Factory {
             isBody = true;
         }
 
-        return new RxJava2CachedCallAdapter(
-                mCachingSystem, responseType, mScheduler, retrofit, annotations, mAsync, isResult, isBody, isFlowable, isSingle, isMaybe, false);
+        CacheSettings<?> settings = new CacheSettings<>(this, capture, responseType, retrofit, annotations);
+        return new RxJava2CachedCallAdapter(settings, responseType, mScheduler, mAsync, isResult, isBody, isFlowable, isSingle, isMaybe, false);
+    }
+
+    public static final class Builder {
+        private final Cache<String, byte[]> mCachingSystem;
+        private Scheduler mScheduler;
+        private boolean mAsync;
+        private PartitionedCache.Router mRouter;
+        private UrlNormalizer mNormalizer = UrlNormalizer.DEFAULT;
+
+        public Builder(@NonNull Cache<String, byte[]> cachingSystem) {
+            this.mCachingSystem = cachingSystem;
+        }
+
+        /**
+         * @param scheduler the network requests are subscribed on. Defaults to the subscribing thread.
+         */
+        public Builder scheduler(@NonNull Scheduler scheduler) {
+            if (scheduler == null) {
+                throw new NullPointerException("mScheduler == null");
+            }
+            this.mScheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Enqueue the network requests with Retrofit instead of executing them on the subscribing
+         * thread.
+         */
+        public Builder async() {
+            this.mAsync = true;
+            return this;
+        }
+
+        /**
+         * Choose the partition of the service methods without
+         * {@link com.andiag.commons.CachePartition}, when the cache is a {@link PartitionedCache}.
+         */
+        public Builder partitionRouter(@Nullable PartitionedCache.Router router) {
+            this.mRouter = router;
+            return this;
+        }
+
+        /**
+         * @param normalizer of the urls before they are keyed, to ignore tracking parameters or
+         *                   cache busters. Defaults to {@link UrlNormalizer#DEFAULT}.
+         */
+        public Builder urlNormalizer(@NonNull UrlNormalizer normalizer) {
+            this.mNormalizer = normalizer;
+            return this;
+        }
+
+        public RxJava2CachedCallAdapterFactory build() {
+            return new RxJava2CachedCallAdapterFactory(this);
+        }
     }
 }
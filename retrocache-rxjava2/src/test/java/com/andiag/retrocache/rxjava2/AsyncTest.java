@@ -15,6 +15,7 @@
  */
 package com.andiag.retrocache.rxjava2;
 
+import com.andiag.commons.StaleIfError;
 import com.andiag.retrocache.rxjava2.CompletableThrowingTest.ForwardingCompletableObserver;
 
 import org.junit.Before;
@@ -26,6 +27,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 import io.reactivex.Completable;
+import io.reactivex.Observable;
 import io.reactivex.exceptions.CompositeException;
 import io.reactivex.exceptions.Exceptions;
 import io.reactivex.functions.Consumer;
@@ -49,6 +51,7 @@ public final class AsyncTest {
     public void setUp() {
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(server.url("/"))
+                .addConverterFactory(new StringConverterFactory())
                 .addCallAdapterFactory(RxJava2CachedCallAdapterFactory.createAsync(new MockCachingSystem()))
                 .build();
         service = retrofit.create(Service.class);
@@ -76,6 +79,22 @@ public final class AsyncTest {
         observer.assertError(IOException.class);
     }
 
+    @Test
+    public void cacheThenNetwork() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        TestObserver<String> first = new TestObserver<>();
+        service.cacheThenNetwork().subscribe(first);
+        first.awaitTerminalEvent(1, SECONDS);
+        first.assertValue("Hi").assertComplete();
+
+        TestObserver<String> observer = new TestObserver<>();
+        service.cacheThenNetwork().subscribe(observer);
+        observer.awaitTerminalEvent(1, SECONDS);
+        observer.assertValues("Hi", "Hello").assertComplete();
+    }
+
     @Test
     public void throwingInOnCompleteDeliveredToPlugin() throws InterruptedException {
         server.enqueue(new MockResponse());
@@ -138,8 +157,87 @@ public final class AsyncTest {
         assertThat(composite.getExceptions()).containsExactly(errorRef.get(), e);
     }
 
+    @Test
+    public void concurrentSubscribersShareRequest() throws InterruptedException {
+        TestObserver<String> first = new TestObserver<>();
+        TestObserver<String> second = new TestObserver<>();
+        service.body().subscribe(first);
+        service.body().subscribe(second);
+
+        server.enqueue(new MockResponse().setBody("Hi"));
+        first.awaitTerminalEvent(1, SECONDS);
+        second.awaitTerminalEvent(1, SECONDS);
+        first.assertValue("Hi");
+        second.assertValue("Hi");
+        assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void disposingOneSubscriberKeepsSharedRequest() throws InterruptedException {
+        TestObserver<String> first = new TestObserver<>();
+        TestObserver<String> second = new TestObserver<>();
+        service.body().subscribe(first);
+        service.body().subscribe(second);
+        first.dispose();
+
+        server.enqueue(new MockResponse().setBody("Hi"));
+        second.awaitTerminalEvent(1, SECONDS);
+        second.assertValue("Hi");
+        first.assertNoValues();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void cacheThenNetworkFailureNotRepeatingEmittedEntry() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=0"));
+        TestObserver<String> first = new TestObserver<>();
+        service.staleCacheThenNetwork().subscribe(first);
+        first.awaitTerminalEvent(1, SECONDS);
+        first.assertValue("Hi");
+
+        // OkHttp retries the request once on a new connection
+        server.enqueue(new MockResponse().setSocketPolicy(DISCONNECT_AFTER_REQUEST));
+        server.enqueue(new MockResponse().setSocketPolicy(DISCONNECT_AFTER_REQUEST));
+        TestObserver<String> second = new TestObserver<>();
+        service.staleCacheThenNetwork().subscribe(second);
+        second.awaitTerminalEvent(1, SECONDS);
+        // The cached entry was already emitted, it is not served again as stale
+        second.assertValue("Hi");
+        second.assertError(IOException.class);
+    }
+
+    @Test
+    public void expiredEntryRevalidatedWithConditionalRequest() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=0").addHeader("ETag", "\"v1\""));
+        TestObserver<String> first = new TestObserver<>();
+        service.body().subscribe(first);
+        first.awaitTerminalEvent(1, SECONDS);
+        first.assertValue("Hi");
+
+        server.enqueue(new MockResponse().setResponseCode(304));
+        TestObserver<String> second = new TestObserver<>();
+        service.body().subscribe(second);
+        second.awaitTerminalEvent(1, SECONDS);
+        second.assertValue("Hi");
+        second.assertComplete();
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isNull();
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    }
+
     interface Service {
         @GET("/")
         Completable completable();
+
+        @GET("/")
+        Observable<String> body();
+
+        @GET("/")
+        @CacheThenNetwork
+        Observable<String> cacheThenNetwork();
+
+        @GET("/")
+        @CacheThenNetwork
+        @StaleIfError(60)
+        Observable<String> staleCacheThenNetwork();
     }
 }
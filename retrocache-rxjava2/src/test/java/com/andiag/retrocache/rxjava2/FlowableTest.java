@@ -194,6 +194,26 @@ public final class FlowableTest {
         assertThat(server.getRequestCount()).isEqualTo(1);
     }
 
+    @Test
+    public void resultCacheThenNetworkRespectsBackpressure() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        RecordingSubscriber<Result<String>> first = subscriberRule.create();
+        service.cacheThenNetworkResult().subscribe(first);
+        assertThat(first.takeValue().response().body()).isEqualTo("Hi");
+        first.assertComplete();
+
+        RecordingSubscriber<Result<String>> subscriber = subscriberRule.createWithInitialRequest(1);
+        service.cacheThenNetworkResult().subscribe(subscriber);
+        assertThat(subscriber.takeValue().response().body()).isEqualTo("Hi");
+        subscriber.assertNoEvents();
+
+        subscriber.request(1);
+        assertThat(subscriber.takeValue().response().body()).isEqualTo("Hello");
+        subscriber.assertComplete();
+    }
+
     interface Service {
         @GET("/")
         Flowable<String> body();
@@ -203,5 +223,9 @@ public final class FlowableTest {
 
         @GET("/")
         Flowable<Result<String>> result();
+
+        @GET("/")
+        @CacheThenNetwork
+        Flowable<Result<String>> cacheThenNetworkResult();
     }
 }
@@ -15,11 +15,26 @@
  */
 package com.andiag.retrocache.rxjava2;
 
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CacheTags;
+import com.andiag.commons.CacheTtl;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.CacheablePost;
+import com.andiag.commons.Invalidates;
+import com.andiag.commons.NegativeCacheTtl;
+import com.andiag.commons.StaleIfError;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.key.UrlNormalizer;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Observable;
 import okhttp3.mockwebserver.MockResponse;
@@ -27,7 +42,12 @@ import okhttp3.mockwebserver.MockWebServer;
 import retrofit2.HttpException;
 import retrofit2.Response;
 import retrofit2.Retrofit;
+import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+import retrofit2.http.Path;
+import retrofit2.http.Query;
 
 import static okhttp3.mockwebserver.SocketPolicy.DISCONNECT_AFTER_REQUEST;
 import static org.assertj.core.api.Java6Assertions.assertThat;
@@ -35,14 +55,16 @@ import static org.assertj.core.api.Java6Assertions.assertThat;
 public final class ObservableTest {
     @Rule public final MockWebServer server = new MockWebServer();
     @Rule public final RecordingObserver.Rule observerRule = new RecordingObserver.Rule();
+    private RxJava2CachedCallAdapterFactory factory;
     private Service service;
 
     @Before
     public void setUp() {
+        factory = RxJava2CachedCallAdapterFactory.create(new MockCachingSystem());
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(server.url("/"))
                 .addConverterFactory(new StringConverterFactory())
-                .addCallAdapterFactory(RxJava2CachedCallAdapterFactory.create(new MockCachingSystem()))
+                .addCallAdapterFactory(factory)
                 .build();
         service = retrofit.create(Service.class);
     }
@@ -128,6 +150,232 @@ public final class ObservableTest {
         observer.assertComplete();
     }
 
+    @Test
+    public void bodyExpiresAfterTtl() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.shortLived().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> cached = observerRule.create();
+        service.shortLived().subscribe(cached);
+        cached.assertValue("Hi").assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+
+        Thread.sleep(1000);
+        RecordingObserver<String> expired = observerRule.create();
+        service.shortLived().subscribe(expired);
+        expired.assertValue("Hello").assertComplete();
+    }
+
+    @Test
+    public void responseErrorReplayedFromCache() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("Missing"));
+
+        RecordingObserver<Response<String>> observer = observerRule.create();
+        service.negativeCached().subscribe(observer);
+        assertThat(observer.takeValue().code()).isEqualTo(404);
+        observer.assertComplete();
+
+        RecordingObserver<Response<String>> cached = observerRule.create();
+        service.negativeCached().subscribe(cached);
+        Response<String> response = cached.takeValue();
+        assertThat(response.code()).isEqualTo(404);
+        assertThat(response.errorBody().string()).isEqualTo("Missing");
+        cached.assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void responseStaleOnServerError() {
+        server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "no-cache"));
+        server.enqueue(new MockResponse().setResponseCode(503));
+
+        RecordingObserver<Response<String>> observer = observerRule.create();
+        service.staleIfError().subscribe(observer);
+        assertThat(CacheUtils.isStale(observer.takeValue())).isFalse();
+        observer.assertComplete();
+
+        RecordingObserver<Response<String>> stale = observerRule.create();
+        service.staleIfError().subscribe(stale);
+        Response<String> response = stale.takeValue();
+        assertThat(response.body()).isEqualTo("Hi");
+        assertThat(CacheUtils.isStale(response)).isTrue();
+        stale.assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void bodyRevalidatedWithConditionalRequest() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=0").addHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.body().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> revalidated = observerRule.create();
+        service.body().subscribe(revalidated);
+        revalidated.assertValue("Hi").assertComplete();
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isNull();
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    }
+
+    @Test
+    public void bodyCacheThenNetwork() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.cacheThenNetwork().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> updated = observerRule.create();
+        service.cacheThenNetwork().subscribe(updated);
+        updated.assertValue("Hi").assertValue("Hello").assertComplete();
+    }
+
+    @Test
+    public void bodyCacheThenNetworkSkipsUnchangedBody() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.cacheThenNetwork().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> unchanged = observerRule.create();
+        service.cacheThenNetwork().subscribe(unchanged);
+        unchanged.assertValue("Hi").assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void bodyCacheThenNetworkFailureNotRepeatingEmittedEntry() {
+        server.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=0"));
+        server.enqueue(new MockResponse().setSocketPolicy(DISCONNECT_AFTER_REQUEST));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.staleCacheThenNetwork().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> failed = observerRule.create();
+        service.staleCacheThenNetwork().subscribe(failed);
+        // The cached entry was already emitted, it is not served again as stale
+        failed.assertValue("Hi").assertError(IOException.class);
+    }
+
+    @Test
+    public void bodyInvalidated() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+        server.enqueue(new MockResponse().setBody("Hey"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.user("42").subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        assertThat(factory.invalidateTag("user:42")).isEqualTo(1);
+        RecordingObserver<String> retagged = observerRule.create();
+        service.user("42").subscribe(retagged);
+        retagged.assertValue("Hello").assertComplete();
+
+        assertThat(factory.invalidatePrefix("/users")).isEqualTo(1);
+        RecordingObserver<String> refetched = observerRule.create();
+        service.user("42").subscribe(refetched);
+        refetched.assertValue("Hey").assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void bodyInvalidatedByMutatingCall() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Updated"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.user("42").subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> update = observerRule.create();
+        service.updateUser("42").subscribe(update);
+        update.assertValue("Updated").assertComplete();
+
+        RecordingObserver<String> refetched = observerRule.create();
+        service.user("42").subscribe(refetched);
+        refetched.assertValue("Hello").assertComplete();
+    }
+
+    @Test
+    public void bodyCachedForPostBody() {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setBody("Hello"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.search("retrofit").subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> cached = observerRule.create();
+        service.search("retrofit").subscribe(cached);
+        cached.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> other = observerRule.create();
+        service.search("okhttp").subscribe(other);
+        other.assertValue("Hello").assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void bodyKeyedByNormalizedUrl() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(new StringConverterFactory())
+                .addCallAdapterFactory(new RxJava2CachedCallAdapterFactory.Builder(new MockCachingSystem())
+                        .urlNormalizer(new UrlNormalizer.Builder().ignore("_").build())
+                        .build())
+                .build();
+        Service service = retrofit.create(Service.class);
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.busted(1).subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+
+        RecordingObserver<String> cached = observerRule.create();
+        service.busted(2).subscribe(cached);
+        cached.assertValue("Hi").assertComplete();
+        assertThat(server.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void bodyCachedInRoutedPartition() {
+        MockCachingSystem defaultPartition = new MockCachingSystem();
+        MockCachingSystem routedPartition = new MockCachingSystem();
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(new StringConverterFactory())
+                .addCallAdapterFactory(new RxJava2CachedCallAdapterFactory.Builder(
+                        new PartitionedCache.Builder(defaultPartition).partition("routed", routedPartition).build())
+                        .partitionRouter(new PartitionedCache.Router() {
+                            @Override
+                            public String partition(@NonNull Annotation[] annotations, @NonNull Type responseType) {
+                                return "routed";
+                            }
+                        })
+                        .build())
+                .build();
+        Service service = retrofit.create(Service.class);
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        RecordingObserver<String> observer = observerRule.create();
+        service.body().subscribe(observer);
+        observer.assertValue("Hi").assertComplete();
+        assertThat(routedPartition.size()).isEqualTo(1);
+        assertThat(defaultPartition.size()).isEqualTo(0);
+    }
+
     @Test
     public void resultFailure() {
         server.enqueue(new MockResponse().setSocketPolicy(DISCONNECT_AFTER_REQUEST));
@@ -149,5 +397,41 @@ public final class ObservableTest {
 
         @GET("/")
         Observable<Result<String>> result();
+
+        @GET("/")
+        @CacheTtl(value = 500, unit = TimeUnit.MILLISECONDS)
+        Observable<String> shortLived();
+
+        @GET("/")
+        @NegativeCacheTtl(60)
+        Observable<Response<String>> negativeCached();
+
+        @GET("/")
+        @StaleIfError(60)
+        Observable<Response<String>> staleIfError();
+
+        @GET("/")
+        @CacheThenNetwork
+        Observable<String> cacheThenNetwork();
+
+        @GET("/")
+        @CacheThenNetwork
+        @StaleIfError(60)
+        Observable<String> staleCacheThenNetwork();
+
+        @GET("/users/{id}")
+        @CacheTags("user:{id}")
+        Observable<String> user(@Path("id") String id);
+
+        @PUT("/users/{id}")
+        @Invalidates
+        Observable<String> updateUser(@Path("id") String id);
+
+        @POST("/search")
+        @CacheablePost
+        Observable<String> search(@Body String query);
+
+        @GET("/")
+        Observable<String> busted(@Query("_") long cacheBuster);
     }
 }
@@ -321,4 +321,22 @@ public class RxJava2CachedCallAdapterFactoryTest {
                     "Result must be parameterized as Result<Foo> or Result<? extends Foo>");
         }
     }
+
+    @Test
+    public void cacheThenNetworkSingleThrows() throws NoSuchMethodException {
+        Annotation[] annotations = SingleService.class.getMethod("single").getAnnotations();
+        Type singleType = new TypeToken<Single<String>>() {
+        }.getType();
+        try {
+            factory.get(singleType, annotations, retrofit);
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("@CacheThenNetwork requires an Observable or Flowable return type");
+        }
+    }
+
+    interface SingleService {
+        @CacheThenNetwork
+        Single<String> single();
+    }
 }
@@ -20,6 +20,14 @@ public interface Cached<T> extends Call<T>, Cloneable {
      */
     void refresh(Callback<T> callback);
 
+    /**
+     * Asynchronously deliver the cached response, if any, and send the request in the background.
+     * {@code callback} is notified a second time only if the new response body differs from the
+     * cached one. Errors while revalidating are not delivered, the cached entry is kept instead.
+     * Without a cached response it behaves like {@link #enqueue(Callback)}.
+     */
+    void revalidate(Callback<T> callback);
+
     /**
      * Returns a runtime {@link Type} that corresponds to the response type specified in your
      * service.
@@ -1,98 +1,479 @@
 package com.andiag.retrocache;
 
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CacheConverter;
 import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.XFetch;
+import com.andiag.commons.cache.CacheEntry;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.cache.ObjectCache;
+import com.andiag.commons.cache.RamLookup;
+import com.andiag.commons.key.KeyComposer;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Type;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import okhttp3.MediaType;
 import okhttp3.Request;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 
 /**
  * Created by IagoCanalejas on 09/01/2017.
  * Handles the {@link Cached} requests
  */
 final class CachedCall<T> implements Cached<T> {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CachedCallAdapter<T> mAdapter;
     private final Executor mExecutor;
+    private final Executor mCacheExecutor;
     private final Call<T> mCall;
     private final Type mResponseType;
-    private final Annotation[] mAnnotations;
-    private final Retrofit mRetrofit;
+    private final CacheConverter<T> mConverter;
     private final Cache<String, byte[]> mCachingSystem;
+    private final ResponseCapture mCapture;
+    private final ObjectCache mObjectCache;
+    private final CacheIndex mIndex;
+    private final CacheIndex.Writer mIndexWriter;
+    private final SingleFlight mFlights;
+    private final RefreshScheduler mRefreshScheduler;
+    private final okhttp3.Call.Factory mCallFactory;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final long mStaleIfErrorMillis;
+    private final XFetch mXFetch;
+    private final KeyComposer mKeys;
     private final Request mRequest;
     private final boolean mCachingActive;
 
     private boolean mExecuted;
-    private boolean mCanceled;
+    private volatile boolean mCanceled;
+    private volatile SingleFlight.Member mMember;
+    private volatile okhttp3.Call mRawCall;
+    private volatile Callback<T> mNetworkCallback;
+    private volatile CacheEntry mStale;
+    private volatile String mKey;
 
-    CachedCall(Executor executor, Call<T> call, Type responseType, Annotation[] annotations, Retrofit retrofit, Cache<String, byte[]> cachingSystem) {
+    CachedCall(CachedCallAdapter<T> adapter, Call<T> call) {
+        this(adapter, call, adapter.mExecutor, null);
+    }
+
+    /**
+     * @param key of the call cloned, null if unknown. Clones share the arguments of the call so
+     *            their key is the same.
+     */
+    private CachedCall(CachedCallAdapter<T> adapter, Call<T> call, Executor executor, String key) {
+        this.mAdapter = adapter;
         this.mExecutor = executor;
+        this.mCacheExecutor = adapter.mCacheExecutor;
         this.mCall = call;
-        this.mResponseType = responseType;
-        this.mAnnotations = annotations;
-        this.mRetrofit = retrofit;
-        this.mCachingSystem = cachingSystem;
-        this.mRequest = RequestBuilder.build(call);
-        mCachingActive = mRequest != null && mRequest.method().equals("GET");
+        this.mResponseType = adapter.mResponseType;
+        this.mConverter = adapter.mConverter;
+        this.mCachingSystem = adapter.mCachingSystem;
+        this.mCapture = adapter.mCapture;
+        this.mObjectCache = adapter.mObjectCache;
+        this.mIndex = adapter.mIndex;
+        this.mIndexWriter = adapter.mIndexWriter;
+        this.mFlights = adapter.mFlights;
+        this.mRefreshScheduler = adapter.mRefreshScheduler;
+        this.mCallFactory = adapter.mCallFactory;
+        this.mTtlMillis = adapter.mTtlMillis;
+        this.mNegativeTtlMillis = adapter.mNegativeTtlMillis;
+        this.mStaleIfErrorMillis = adapter.mStaleIfErrorMillis;
+        this.mXFetch = adapter.mXFetch;
+        this.mKeys = adapter.mKeys;
+        this.mRequest = CacheUtils.request(call);
+        this.mCachingActive = mRequest != null && mKeys.isCached(mRequest);
+        this.mKey = mCachingActive ? key : null;
 
         mExecuted = mCall.isExecuted();
         mCanceled = mCall.isCanceled();
     }
 
+    /**
+     * @return cache key of the request, computed on first use since the keys of
+     * {@link com.andiag.commons.CacheablePost} methods hash the whole body, and passed on to
+     * clones.
+     */
+    String key() {
+        String key = mKey;
+        if (key == null) {
+            key = mKeys.key(mRequest).toString();
+            mKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * @return true if responses are cached: {@code GET} requests, and {@code POST} requests of
+     * {@link CacheablePost} methods.
+     */
+    boolean isCached() {
+        return mCachingActive;
+    }
+
     /**
      * Try to find {@link Request} on cache.
      *
-     * @param callback {@link Callback} to handle {@link Callback#onResponse} result.
+     * @param callback   {@link Callback} to handle {@link Callback#onResponse} result.
+     * @param key        of the request.
+     * @param revalidate fetch the response again after delivering a cached one.
      * @return True if found on cache. False otherwise.
      */
-    private boolean cacheLoad(final Callback<T> callback) {
-        byte[] data = mCachingSystem.get(CacheUtils.urlToKey(request().url()));
-        if (data != null) {
-            final T convertedData = CacheUtils.bytesToResponse(mRetrofit, mResponseType, mAnnotations, data);
+    private boolean cacheLoad(final Callback<T> callback, String key, boolean revalidate) {
+        byte[] data = mCachingSystem.get(key);
+        CacheEntry entry = data != null ? CacheEntry.parse(data) : null;
+        if (entry != null) {
+            cacheHit(callback, key, entry, revalidate);
+            return true;
+        }
+        return false;
+    }
 
-            mExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    callback.onResponse(mCall, Response.success(convertedData));
-                }
-            });
+    /**
+     * Try to find {@link Request} on the RAM level of the cache, without blocking.
+     *
+     * @param callback   {@link Callback} to handle {@link Callback#onResponse} result.
+     * @param key        of the request.
+     * @param revalidate fetch the response again after delivering a cached one.
+     * @return True if found on RAM. False otherwise.
+     */
+    private boolean ramLoad(final Callback<T> callback, String key, boolean revalidate) {
+        if (!(mCachingSystem instanceof RamLookup)) {
+            return false;
+        }
+        byte[] data = ((RamLookup) mCachingSystem).getFromRam(key);
+        CacheEntry entry = data != null ? CacheEntry.parse(data) : null;
+        if (entry != null) {
+            cacheHit(callback, key, entry, revalidate);
             return true;
         }
         return false;
     }
 
+    /**
+     * Deliver a cached entry if it is still fresh. Expired entries are revalidated with a
+     * conditional request when they have validators, and fetched again otherwise.
+     */
+    private void cacheHit(Callback<T> callback, String key, CacheEntry entry, boolean revalidate) {
+        if (revalidate) {
+            // Expired entries are delivered too, they are about to be revalidated
+            deliverCached(callback, key, entry);
+            revalidateLoad(callback, key, entry);
+        } else if (entry.isFresh()) {
+            deliverCached(callback, key, entry);
+            refreshEarly(key, entry);
+        } else {
+            keepStale(entry);
+            if (entry.hasValidators()) {
+                conditionalLoad(callback, key, entry);
+            } else {
+                sharedLoad(callback);
+            }
+        }
+    }
+
+    /**
+     * Refresh a fresh entry in the background before it expires, when the service method opted
+     * in with {@link com.andiag.commons.EarlyRefresh}.
+     */
+    private void refreshEarly(String key, CacheEntry entry) {
+        if (mXFetch != null) {
+            mXFetch.refreshIfDue(request(), key, entry);
+        }
+    }
+
+    /**
+     * Keep an expired entry to serve it if the network fails, when the service method allows it
+     * with {@link com.andiag.commons.StaleIfError}.
+     */
+    private void keepStale(CacheEntry entry) {
+        if (mStaleIfErrorMillis > 0) {
+            mStale = entry;
+        }
+    }
+
+    /**
+     * @return the expired entry to serve instead of a network error, null if there is none.
+     */
+    private Response<T> staleResponse() {
+        CacheEntry stale = mStale;
+        if (stale == null || mCanceled || !stale.isUsableIfError(mStaleIfErrorMillis)) {
+            return null;
+        }
+        return stale.stale(decode(key(), stale), request());
+    }
+
+    /**
+     * Deliver the expired entry instead of a network error.
+     *
+     * @return true if delivered.
+     */
+    private boolean deliverStale(final Callback<T> callback) {
+        final Response<T> response = staleResponse();
+        if (response == null) {
+            return false;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(mCall, response);
+            }
+        });
+        return true;
+    }
+
+    private void deliverCached(final Callback<T> callback, String key, CacheEntry entry) {
+        final Response<T> response = entry.isError()
+                ? entry.<T>error(request()) : Response.success(decode(key, entry));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResponse(mCall, response);
+            }
+        });
+    }
+
+    /**
+     * Decode a cached entry, skipping the converter if the {@link ObjectCache} already holds the
+     * value decoded from it.
+     */
+    private T decode(String key, CacheEntry entry) {
+        if (mObjectCache == null) {
+            return mConverter.fromEntry(entry);
+        }
+        T convertedData = mObjectCache.get(key, mResponseType, entry.stored());
+        if (convertedData == null) {
+            convertedData = mConverter.fromEntry(entry);
+            mObjectCache.put(key, mResponseType, entry.stored(), convertedData);
+        }
+        return convertedData;
+    }
+
+    /**
+     * Start capturing the raw body of {@link #mCall} if the capture interceptor is installed.
+     */
+    private void startCapture() {
+        if (mCapture != null) {
+            mCapture.expect(request());
+        }
+    }
+
+    /**
+     * Stop capturing the raw body of {@link #mCall}.
+     *
+     * @return bytes to cache for a successful response. The captured network bytes if available,
+     * otherwise the body serialized again.
+     */
+    private byte[] finishCapture(Response<T> response) {
+        byte[] data = mCapture != null ? mCapture.take(request()) : null;
+        if (data == null && response != null && response.isSuccessful()) {
+            data = mConverter.toBytes(response.body());
+        }
+        return data;
+    }
+
+    /**
+     * @return stored bytes, null if there is nothing to cache.
+     */
+    private byte[] putInCache(byte[] data, Response<T> response) {
+        return putInCache(key(), data, response.body(), response.raw());
+    }
+
+    /**
+     * @param data        raw response body.
+     * @param body        decoded from {@code data}.
+     * @param rawResponse holding the caching headers.
+     * @return stored bytes, null if there is nothing to cache.
+     */
+    private byte[] putInCache(String key, byte[] data, T body, okhttp3.Response rawResponse) {
+        if (data == null) {
+            return null;
+        }
+        byte[] stored = CacheEntry.encode(data, rawResponse, mTtlMillis);
+        if (mXFetch != null) {
+            mXFetch.record(rawResponse);
+        }
+        mCachingSystem.put(key, stored);
+        mIndexWriter.put(key, mRequest.url());
+        if (mObjectCache != null) {
+            mObjectCache.put(key, mResponseType, stored, body);
+        }
+        return stored;
+    }
+
+    /**
+     * Store an entry again after a {@code 304 Not Modified}, keeping its decoded value.
+     *
+     * @return updated entry.
+     */
+    private CacheEntry putRevalidated(String key, CacheEntry entry, okhttp3.Response notModified) {
+        byte[] stored = entry.revalidated(notModified, mTtlMillis);
+        if (mXFetch != null) {
+            mXFetch.record(notModified);
+        }
+        mCachingSystem.put(key, stored);
+        mIndexWriter.put(key, mRequest.url());
+        if (mObjectCache != null) {
+            T convertedData = mObjectCache.get(key, mResponseType, entry.stored());
+            if (convertedData != null) {
+                mObjectCache.put(key, mResponseType, stored, convertedData);
+            }
+        }
+        return CacheEntry.parse(stored);
+    }
+
+    /**
+     * Cache a client error if the service method opted in with
+     * {@link com.andiag.commons.NegativeCacheTtl}.
+     *
+     * @return stored bytes, null if there is nothing to cache.
+     */
+    private byte[] putErrorInCache(Response<T> response) {
+        if (mNegativeTtlMillis <= 0 || !CacheEntry.isCacheableError(response.code())) {
+            return null;
+        }
+        byte[] data = CacheUtils.errorBytes(response);
+        if (data == null) {
+            return null;
+        }
+        String key = key();
+        byte[] stored = CacheEntry.encode(data, response.raw(), mNegativeTtlMillis);
+        mCachingSystem.put(key, stored);
+        mIndexWriter.put(key, mRequest.url());
+        return stored;
+    }
+
+    private void removeFromCache() {
+        String key = key();
+        mCachingSystem.remove(key);
+        mIndex.remove(key);
+        if (mObjectCache != null) {
+            mObjectCache.remove(key);
+        }
+    }
+
+    /**
+     * Enqueue attaching to the server {@link Request} in flight for the same key, or starting it
+     * if there is none.
+     *
+     * @param callback {@link Callback} to handle {@link Callback#onResponse} result.
+     */
+    private void sharedLoad(final Callback<T> callback) {
+        final String key = key();
+        SingleFlight.Member member = mFlights.join(key, new SingleFlight.Listener() {
+            @Override
+            public void onShared(@NonNull byte[] stored) {
+                if (mCanceled) {
+                    deliverFailure(callback, new IOException("Canceled"));
+                    return;
+                }
+                CacheEntry entry = CacheEntry.parse(stored);
+                final Response<T> response = entry.isError()
+                        ? entry.<T>error(request()) : Response.success(decode(key, entry));
+                if (response.code() >= 500 && deliverStale(callback)) {
+                    return;
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponse(mCall, response);
+                    }
+                });
+            }
+
+            @Override
+            public void onUnavailable() {
+                networkLoad(callback, false, null);
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                if (!deliverStale(callback)) {
+                    deliverFailure(callback, t);
+                }
+            }
+        });
+        mMember = member;
+        if (member.isLeader()) {
+            member.attach(mCall);
+            networkLoad(callback, false, member);
+        }
+        if (mCanceled) {
+            // Cancelled while joining
+            member.cancel();
+        }
+    }
+
+    private void deliverFailure(final Callback<T> callback, final Throwable t) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFailure(mCall, t);
+            }
+        });
+    }
+
     /**
      * Enqueue trying to resolve it with a server {@link Request}.
      *
      * @param callback  {@link Callback} to handle {@link Callback#onResponse} result.
      * @param isRefresh Mark if cache should be deleted.
+     * @param member    leading the shared request, null if it is not shared.
      */
-    private void networkLoad(final Callback<T> callback, final boolean isRefresh) {
-        mCall.enqueue(new Callback<T>() {
+    private void networkLoad(final Callback<T> callback, final boolean isRefresh,
+                             final SingleFlight.Member member) {
+        startCapture();
+        Callback<T> networkCallback = new Callback<T>() {
+            private final AtomicBoolean mDone = new AtomicBoolean();
+
             @Override
             public void onResponse(final Call<T> call, final Response<T> response) {
+                if (!mDone.compareAndSet(false, true)) {
+                    // Already failed by cancel()
+                    return;
+                }
+                byte[] data = finishCapture(response);
+                byte[] stored = null;
+                if (response.isSuccessful()) {
+                    // Add response to cache
+                    stored = putInCache(data, response);
+                }
+                if (!response.isSuccessful() && isRefresh) {
+                    // If we are refreshing remove cache entry
+                    removeFromCache();
+                } else if (!response.isSuccessful()) {
+                    stored = putErrorInCache(response);
+                }
+                if (member != null) {
+                    member.complete(stored != null || response.isSuccessful() ? stored : CacheUtils.sharedError(response));
+                }
+                if (response.code() >= 500 && deliverStale(callback)) {
+                    return;
+                }
                 mExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        if (response.isSuccessful()) {
-                            // Add response to cache
-                            mCachingSystem.put(
-                                    CacheUtils.urlToKey(mCall.request().url()),
-                                    CacheUtils.responseToBytes(mRetrofit, response.body(),
-                                            responseType(), mAnnotations));
-                        }
-                        if (!response.isSuccessful() && isRefresh) {
-                            // If we are refreshing remove cache entry
-                            mCachingSystem.remove(
-                                    CacheUtils.urlToKey(mCall.request().url()));
+                        if (mCanceled && member != null) {
+                            // Request kept alive for other callers
+                            callback.onFailure(call, new IOException("Canceled"));
+                            return;
                         }
                         callback.onResponse(call, response);
                     }
@@ -100,25 +481,227 @@ final class CachedCall<T> implements Cached<T> {
             }
 
             @Override
-            public void onFailure(final Call<T> call, final Throwable t) {
+            public void onFailure(final Call<T> call, Throwable failure) {
+                if (!mDone.compareAndSet(false, true)) {
+                    return;
+                }
+                finishCapture(null);
+                // OkHttp reports a call cancelled while connecting as a socket error
+                final Throwable t = mCanceled ? new IOException("Canceled") : failure;
+                if (isRefresh) {
+                    // If we are refreshing remove cache entry
+                    removeFromCache();
+                }
+                if (member != null) {
+                    member.fail(t);
+                }
+                if (deliverStale(callback)) {
+                    return;
+                }
                 mExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        if (isRefresh) {
-                            // If we are refreshing remove cache entry
-                            mCachingSystem.remove(CacheUtils.urlToKey(mCall.request().url()));
-                        }
                         callback.onFailure(call, t);
                     }
                 });
             }
+        };
+        mNetworkCallback = networkCallback;
+        mCall.enqueue(networkCallback);
+    }
+
+    /**
+     * Send the request again after delivering a cached response. The raw bytes are compared with
+     * the cached ones, so unchanged responses are neither decoded nor delivered. The request goes
+     * straight to the {@link okhttp3.Call.Factory} because {@link #mCall} runs the converter.
+     *
+     * @param callback {@link Callback} notified only if the response changed.
+     * @param key      of the cached response.
+     * @param entry    already delivered.
+     */
+    private void revalidateLoad(final Callback<T> callback, final String key, final CacheEntry entry) {
+        okhttp3.Call revalidation = newRawCall(entry.conditional(request()));
+        if (revalidation == null) {
+            return;
+        }
+        revalidation.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response rawResponse) {
+                final Response<T> response;
+                try {
+                    response = revalidatedResponse(key, entry, rawResponse);
+                } catch (Throwable t) {
+                    // Keep the cached response, the caller already got it
+                    return;
+                }
+                if (response == null) {
+                    return;
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCanceled) {
+                            callback.onResponse(mCall, response);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(okhttp3.Call call, IOException exc) {
+                // Keep the cached response, the caller already got it
+            }
+        });
+    }
+
+    /**
+     * Convert the response to a revalidation, caching it if it changed.
+     *
+     * @return the changed response, null if the cached one is kept.
+     */
+    private Response<T> revalidatedResponse(String key, CacheEntry entry, okhttp3.Response rawResponse)
+            throws IOException {
+        byte[] data;
+        try {
+            if (rawResponse.code() == 304) {
+                // Refresh the entry life time without downloading it
+                putRevalidated(key, entry, rawResponse);
+                return null;
+            }
+            if (!rawResponse.isSuccessful() || rawResponse.code() == 204 || rawResponse.code() == 205) {
+                // Keep the cached response
+                return null;
+            }
+            data = rawResponse.body().bytes();
+        } finally {
+            rawResponse.close();
+        }
+        if (entry.hasBody(data)) {
+            // Refresh the entry life time without decoding it
+            putRevalidated(key, entry, rawResponse);
+            return null;
+        }
+
+        T body = mConverter.fromBytes(data);
+        if (body == null) {
+            return null;
+        }
+        putInCache(key, data, body, rawResponse);
+        return Response.success(body, withoutBody(rawResponse));
+    }
+
+    /**
+     * Revalidate an expired entry with a conditional request, delivering the cached body if the
+     * server answers {@code 304 Not Modified}.
+     *
+     * @param callback {@link Callback} to handle {@link Callback#onResponse} result.
+     * @param key      of the expired entry.
+     * @param entry    expired entry with validators.
+     */
+    private void conditionalLoad(final Callback<T> callback, final String key, final CacheEntry entry) {
+        okhttp3.Call conditional = newRawCall(entry.conditional(request()));
+        if (conditional == null) {
+            deliverFailure(callback, new IOException("Canceled"));
+            return;
+        }
+        conditional.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response rawResponse) {
+                final Response<T> response;
+                try {
+                    response = conditionalResponse(key, entry, rawResponse);
+                } catch (Throwable t) {
+                    deliverFailure(callback, t);
+                    return;
+                }
+                if (response.code() >= 500 && deliverStale(callback)) {
+                    return;
+                }
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onResponse(mCall, response);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(okhttp3.Call call, IOException exc) {
+                if (!deliverStale(callback)) {
+                    deliverFailure(callback, exc);
+                }
+            }
         });
     }
 
+    /**
+     * Convert the response to a conditional request like Retrofit does, caching it if it changed.
+     */
+    private Response<T> conditionalResponse(String key, CacheEntry entry, okhttp3.Response rawResponse)
+            throws IOException {
+        byte[] data;
+        MediaType contentType;
+        try {
+            if (rawResponse.code() == 304) {
+                return Response.success(decode(key, putRevalidated(key, entry, rawResponse)));
+            }
+            contentType = rawResponse.body().contentType();
+            data = rawResponse.body().bytes();
+        } finally {
+            rawResponse.close();
+        }
+
+        okhttp3.Response metadata = withoutBody(rawResponse);
+        if (!rawResponse.isSuccessful()) {
+            return Response.error(ResponseBody.create(contentType, data), metadata);
+        }
+        if (rawResponse.code() == 204 || rawResponse.code() == 205) {
+            return Response.success(null, metadata);
+        }
+        T body = mConverter.fromBytes(data);
+        if (body == null) {
+            throw new IOException("Unable to decode the response body");
+        }
+        putInCache(key, data, body, rawResponse);
+        return Response.success(body, metadata);
+    }
+
+    /**
+     * Create a request bypassing {@link #mCall}, cancelled along with this call.
+     *
+     * @return the new call, null if this call is already cancelled.
+     */
+    private okhttp3.Call newRawCall(Request request) {
+        okhttp3.Call call = mCallFactory.newCall(request);
+        mRawCall = call;
+        return mCanceled ? null : call;
+    }
+
+    private static okhttp3.Response withoutBody(okhttp3.Response rawResponse) {
+        return rawResponse.newBuilder().body(null).build();
+    }
+
+    /**
+     * Remove the entries a successful call of a mutating method invalidates, see
+     * {@link com.andiag.commons.Invalidates}.
+     */
+    private void invalidate(Response<T> response) {
+        if (!response.isSuccessful()) {
+            return;
+        }
+        List<String> keys = mIndexWriter.invalidate(mRequest.url());
+        if (mObjectCache != null) {
+            for (String key : keys) {
+                mObjectCache.remove(key);
+            }
+        }
+    }
+
     private void delegate(final Callback<T> callback) {
         mCall.enqueue(new Callback<T>() {
             @Override
             public void onResponse(final Call<T> call, final Response<T> response) {
+                invalidate(response);
                 mExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
@@ -141,6 +724,15 @@ final class CachedCall<T> implements Cached<T> {
 
     @Override
     public void enqueue(final Callback<T> callback) {
+        enqueue(callback, mAdapter.mStaleWhileRevalidate);
+    }
+
+    @Override
+    public void revalidate(final Callback<T> callback) {
+        enqueue(callback, true);
+    }
+
+    private void enqueue(final Callback<T> callback, final boolean revalidate) {
         if (callback == null) {
             throw new NullPointerException("callback == null");
         }
@@ -150,15 +742,25 @@ final class CachedCall<T> implements Cached<T> {
 
         mExecuted = true;
         if (mCachingActive) {
-            // Look in cache if we are in a GET method
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    if (!cacheLoad(callback)) {
-                        networkLoad(callback, false);
+            final String key = key();
+            mRefreshScheduler.touch(key);
+            // Look in cache if we are in a GET method. RAM hits are served right away, disk
+            // reads may block so they run in the cache executor
+            if (!ramLoad(callback, key, revalidate)) {
+                mCacheExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCanceled) {
+                            // Cancelled before the lookup, don't start a request
+                            deliverFailure(callback, new IOException("Canceled"));
+                            return;
+                        }
+                        if (!cacheLoad(callback, key, revalidate)) {
+                            sharedLoad(callback);
+                        }
                     }
-                }
-            }).start();
+                });
+            }
             return;
         }
         delegate(callback);
@@ -175,17 +777,85 @@ final class CachedCall<T> implements Cached<T> {
 
         mExecuted = true;
         if (mCachingActive) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    networkLoad(callback, true);
-                }
-            }).start();
+            networkLoad(callback, true, null);
             return;
         }
         delegate(callback);
     }
 
+    /**
+     * Bring the response into the cache for {@link Prefetch}. Fresh entries are neither fetched
+     * nor decoded, expired ones are revalidated or fetched again.
+     *
+     * @param callback notified once the response is cached, unless a fresh entry was found.
+     * @return false if a fresh entry was already cached.
+     * @throws IllegalStateException if the request is not cached.
+     */
+    boolean prefetch(final Callback<T> callback) {
+        if (!mCachingActive) {
+            throw new IllegalStateException("The request is not cached");
+        }
+        if (mExecuted || mCall.isExecuted()) {
+            throw new IllegalStateException("Already executed.");
+        }
+
+        mExecuted = true;
+        String key = key();
+        byte[] data = mCachingSystem.get(key);
+        CacheEntry entry = data != null ? CacheEntry.parse(data) : null;
+        if (entry == null) {
+            sharedLoad(callback);
+            return true;
+        }
+        if (entry.isFresh()) {
+            return false;
+        }
+        cacheHit(callback, key, entry, false);
+        return true;
+    }
+
+    /**
+     * Register the call in the {@link RefreshScheduler} of the factory that created it, which the
+     * reads of its url go through.
+     */
+    RefreshAhead scheduleRefreshes(long intervalMillis, long idleMillis) {
+        return mRefreshScheduler.register(this, intervalMillis, idleMillis);
+    }
+
+    /**
+     * Fetch the response again for {@link RefreshAhead}, with a conditional request if the cached
+     * entry has validators. Unlike {@link #refresh(Callback)} failures keep the cached entry.
+     *
+     * @param callback notified once the response is cached.
+     * @throws IllegalStateException if the request is not cached.
+     */
+    void refreshAhead(final Callback<T> callback) {
+        if (!mCachingActive) {
+            throw new IllegalStateException("The request is not cached");
+        }
+        if (mExecuted || mCall.isExecuted()) {
+            throw new IllegalStateException("Already executed.");
+        }
+
+        mExecuted = true;
+        String key = key();
+        byte[] data = mCachingSystem.get(key);
+        CacheEntry entry = data != null ? CacheEntry.parse(data) : null;
+        if (entry != null && entry.hasValidators()) {
+            conditionalLoad(callback, key, entry);
+        } else {
+            sharedLoad(callback);
+        }
+    }
+
+    /**
+     * @return new call delivering its callbacks on the thread completing it, for {@link Prefetch}
+     * and {@link RefreshAhead}.
+     */
+    CachedCall<T> cloneForPrefetch() {
+        return new CachedCall<>(mAdapter, mCall.clone(), DIRECT, mKey);
+    }
+
     @Override
     public Type responseType() {
         return mResponseType;
@@ -193,13 +863,13 @@ final class CachedCall<T> implements Cached<T> {
 
     @Override
     public Request request() {
-        return mRequest.newBuilder().build();
+        // Requests are immutable, and a failed one is thrown again by the call
+        return mRequest != null ? mRequest : mCall.request();
     }
 
     @Override
     public Cached<T> clone() {
-        return new CachedCall<>(mExecutor, mCall.clone(), responseType(),
-                mAnnotations, mRetrofit, mCachingSystem);
+        return new CachedCall<>(mAdapter, mCall.clone(), mAdapter.mExecutor, mKey);
     }
 
     @Override
@@ -210,34 +880,135 @@ final class CachedCall<T> implements Cached<T> {
 
         mExecuted = true;
         if (mCachingActive) {
-            byte[] data = mCachingSystem.get(CacheUtils.urlToKey(mCall.request().url()));
+            String key = key();
+            mRefreshScheduler.touch(key);
+            byte[] data = mCachingSystem.get(key);
             if (data == null) { // Response is not cached
-                Response<T> response = mCall.execute();
-                if (response.isSuccessful()) {
-                    mCachingSystem.put(
-                            CacheUtils.urlToKey(mCall.request().url()),
-                            CacheUtils.responseToBytes(mRetrofit, response.body(),
-                                    responseType(), mAnnotations));
+                return sharedExecute(key);
+            }
+            CacheEntry entry = CacheEntry.parse(data);
+            if (entry == null) { // Response was cached in an unknown format
+                return sharedExecute(key);
+            }
+            if (entry.isFresh()) { // Response is cached
+                refreshEarly(key, entry);
+                return entry.isError() ? entry.<T>error(request()) : Response.success(decode(key, entry));
+            }
+            keepStale(entry);
+            Response<T> response;
+            try {
+                response = entry.hasValidators() ? conditionalExecute(key, entry) : sharedExecute(key);
+            } catch (IOException exc) {
+                Response<T> stale = staleResponse();
+                if (stale == null) {
+                    throw exc;
                 }
-                return response;
+                return stale;
+            }
+            Response<T> stale = response.code() >= 500 ? staleResponse() : null;
+            return stale != null ? stale : response;
+        }
+        Response<T> response = mCall.execute();
+        invalidate(response);
+        return response;
+    }
+
+    /**
+     * Execute attaching to the server {@link Request} in flight for the same key, or starting it
+     * if there is none.
+     */
+    private Response<T> sharedExecute(String key) throws IOException {
+        SingleFlight.BlockingListener listener = new SingleFlight.BlockingListener();
+        SingleFlight.Member member = mFlights.join(key, listener);
+        mMember = member;
+        if (member.isLeader()) {
+            member.attach(mCall);
+            return networkExecute(member);
+        }
+
+        byte[] stored;
+        try {
+            stored = listener.await();
+        } catch (InterruptedIOException exc) {
+            member.cancel();
+            throw exc;
+        }
+        if (stored == null) {
+            return networkExecute(null);
+        }
+        CacheEntry entry = CacheEntry.parse(stored);
+        return entry.isError() ? entry.<T>error(request()) : Response.success(decode(key, entry));
+    }
+
+    /**
+     * Execute a conditional request for an expired entry with validators.
+     */
+    private Response<T> conditionalExecute(String key, CacheEntry entry) throws IOException {
+        okhttp3.Call conditional = newRawCall(entry.conditional(request()));
+        if (conditional == null) {
+            throw new IOException("Canceled");
+        }
+        return conditionalResponse(key, entry, conditional.execute());
+    }
+
+    /**
+     * @param member leading the shared request, null if it is not shared.
+     */
+    private Response<T> networkExecute(SingleFlight.Member member) throws IOException {
+        startCapture();
+        Response<T> response;
+        try {
+            response = mCall.execute();
+        } catch (IOException | RuntimeException | Error exc) {
+            finishCapture(null);
+            if (member != null) {
+                member.fail(exc);
             }
-            // Response is cached
-            final T convertedData = CacheUtils.bytesToResponse(
-                    mRetrofit, mResponseType, mAnnotations, data);
-            return Response.success(convertedData);
+            throw exc;
+        }
+
+        byte[] data = finishCapture(response);
+        byte[] stored = null;
+        if (response.isSuccessful()) {
+            stored = putInCache(data, response);
+        } else {
+            stored = putErrorInCache(response);
+        }
+        if (member != null) {
+            member.complete(stored != null || response.isSuccessful() ? stored : CacheUtils.sharedError(response));
         }
-        return mCall.execute();
+        return response;
     }
 
     @Override
     public void remove() {
-        mCachingSystem.remove(CacheUtils.urlToKey(mCall.request().url()));
+        removeFromCache();
     }
 
     @Override
     public void cancel() {
         this.mCanceled = true;
+        okhttp3.Call rawCall = mRawCall;
+        if (rawCall != null) {
+            rawCall.cancel();
+        }
+        SingleFlight.Member member = mMember;
+        if (member != null && !member.cancel() && member.isLeader()) {
+            // A shared request is only cancelled when no other caller waits for it
+            return;
+        }
         mCall.cancel();
+        final Callback<T> networkCallback = mNetworkCallback;
+        if (networkCallback != null) {
+            // OkHttp may lose a cancel arriving while it connects, fail without waiting for it. Posted,
+            // so the cancelling thread never runs the cache and index updates of the failure
+            mCacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    networkCallback.onFailure(mCall, new IOException("Canceled"));
+                }
+            });
+        }
     }
 
     @Override
@@ -250,41 +1021,4 @@ final class CachedCall<T> implements Cached<T> {
         return mCall.isExecuted() || mExecuted;
     }
 
-    /**
-     * Created by IagoCanalejas on 02/02/2017.
-     * Required because {@link retrofit2.RequestBuilder} is final and package local
-     */
-    private static final class RequestBuilder {
-
-        private static Object[] getCallArgs(Call call)
-                throws NoSuchFieldException, IllegalAccessException {
-            Field argsField = call.getClass().getDeclaredField("args");
-            argsField.setAccessible(true);
-            return (Object[]) argsField.get(call);
-        }
-
-        private static Object getRequestFactory(Call call)
-                throws IllegalAccessException, NoSuchFieldException {
-            Field serviceMethodField = call.getClass().getDeclaredField("serviceMethod");
-            serviceMethodField.setAccessible(true);
-            return serviceMethodField.get(call);
-        }
-
-        static Request build(Call call) {
-            try {
-                Object requestFactory = getRequestFactory(call);
-                Method createMethod = requestFactory.getClass()
-                        .getDeclaredMethod("toRequest", Object[].class);
-
-                createMethod.setAccessible(true);
-
-                return (Request) createMethod.invoke(
-                        requestFactory, new Object[]{getCallArgs(call)});
-            } catch (Exception exc) {
-                return null;
-            }
-        }
-
-    }
-
 }
@@ -1,5 +1,14 @@
 package com.andiag.retrocache;
 
+import com.andiag.commons.CacheConverter;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.XFetch;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.cache.ObjectCache;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.key.KeyComposer;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
 import java.lang.annotation.Annotation;
@@ -13,32 +22,59 @@ import retrofit2.Retrofit;
 
 /**
  * Created by Canalejas on 22/02/2017.
+ * Holds the configuration shared by every {@link CachedCall} of a service method.
  */
 
 final class CachedCallAdapter<T> implements CallAdapter<T, Cached<T>> {
 
-    private final Type mReturnType;
-    private final Executor mExecutor;
-    private final Annotation[] mAnnotations;
-    private final Retrofit mRetrofit;
-    private final Cache<String, byte[]> mCachingSystem;
-
-    CachedCallAdapter(Executor executor, Type returnType, Annotation[] annotations,
-                      Retrofit retrofit, Cache<String, byte[]> cachingSystem) {
-        this.mExecutor = executor;
-        this.mAnnotations = annotations;
-        this.mRetrofit = retrofit;
-        this.mCachingSystem = cachingSystem;
-        this.mReturnType = returnType;
+    final Type mResponseType;
+    final Executor mExecutor;
+    final Executor mCacheExecutor;
+    final CacheConverter<T> mConverter;
+    final Cache<String, byte[]> mCachingSystem;
+    final ResponseCapture mCapture;
+    final ObjectCache mObjectCache;
+    final CacheIndex mIndex;
+    final CacheIndex.Writer mIndexWriter;
+    final SingleFlight mFlights;
+    final RefreshScheduler mRefreshScheduler;
+    final okhttp3.Call.Factory mCallFactory;
+    final boolean mStaleWhileRevalidate;
+    final long mTtlMillis;
+    final long mNegativeTtlMillis;
+    final long mStaleIfErrorMillis;
+    final XFetch mXFetch;
+    final KeyComposer mKeys;
+
+    CachedCallAdapter(CachedCallAdapterFactory factory, Type returnType, Annotation[] annotations,
+                      Retrofit retrofit, ResponseCapture capture) {
+        this.mResponseType = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+        this.mExecutor = factory.mAsyncExecutor;
+        this.mCacheExecutor = factory.mCacheExecutor;
+        this.mCachingSystem = PartitionedCache.select(factory.mCachingSystem, annotations, mResponseType, factory.mRouter);
+        this.mObjectCache = factory.mObjectCache;
+        this.mIndex = factory.mIndex;
+        this.mKeys = CacheUtils.keyComposer(annotations, factory.mNormalizer);
+        this.mIndexWriter = factory.mIndex.writer(annotations, mKeys);
+        this.mFlights = factory.mFlights;
+        this.mRefreshScheduler = factory.mRefreshScheduler;
+        this.mCapture = capture;
+        this.mCallFactory = retrofit.callFactory();
+        this.mStaleWhileRevalidate = CacheUtils.findAnnotation(annotations, StaleWhileRevalidate.class) != null;
+        this.mTtlMillis = CacheUtils.ttlMillis(annotations);
+        this.mNegativeTtlMillis = CacheUtils.negativeTtlMillis(annotations);
+        this.mStaleIfErrorMillis = CacheUtils.staleIfErrorMillis(annotations);
+        this.mXFetch = XFetch.create(annotations, mCallFactory, mCachingSystem, mIndexWriter, mTtlMillis);
+        this.mConverter = CacheConverter.create(retrofit, mResponseType, annotations);
     }
 
     @Override
     public Type responseType() {
-        return ((ParameterizedType) mReturnType).getActualTypeArguments()[0];
+        return mResponseType;
     }
 
     @Override
     public Cached<T> adapt(Call<T> call) {
-        return new CachedCall<>(mExecutor, call, responseType(), mAnnotations, mRetrofit, mCachingSystem);
+        return new CachedCall<>(this, call);
     }
 }
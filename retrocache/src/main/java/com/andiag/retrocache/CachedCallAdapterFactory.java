@@ -6,47 +6,196 @@ import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.andiag.commons.CacheExecutor;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.ResponseCapture;
 import com.andiag.commons.RetroCache;
+import com.andiag.commons.SingleFlight;
+import com.andiag.commons.cache.CacheIndex;
+import com.andiag.commons.cache.ObjectCache;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.key.UrlNormalizer;
 import com.google.common.reflect.TypeToken;
 import com.iagocanalejas.dualcache.interfaces.Cache;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import okhttp3.Interceptor;
+import retrofit2.Call;
 import retrofit2.CallAdapter;
 import retrofit2.Retrofit;
+import retrofit2.http.Streaming;
 
 public class CachedCallAdapterFactory extends CallAdapter.Factory {
-    private final Cache<String, byte[]> mCachingSystem;
-    private final Executor mAsyncExecutor;
+    public static final int DEFAULT_PREFETCH_PARALLELISM = 4;
+    public static final int DEFAULT_REFRESH_IDLE_INTERVALS = 4;
 
-    private CachedCallAdapterFactory(@NonNull Cache<String, byte[]> cachingSystem, @Nullable Executor executor) {
-        this.mCachingSystem = cachingSystem;
-        this.mAsyncExecutor = executor;
+    final Cache<String, byte[]> mCachingSystem;
+    final Executor mAsyncExecutor;
+    final Executor mCacheExecutor;
+    final ObjectCache mObjectCache;
+    final PartitionedCache.Router mRouter;
+    final UrlNormalizer mNormalizer;
+    final CacheIndex mIndex;
+    final SingleFlight mFlights = new SingleFlight();
+    final RefreshScheduler mRefreshScheduler;
+    private final ResponseCapture mCapture = new ResponseCapture();
+
+    private CachedCallAdapterFactory(Builder builder) {
+        this.mCachingSystem = builder.mCachingSystem;
+        this.mAsyncExecutor = builder.mExecutor;
+        this.mCacheExecutor = builder.mCacheExecutor;
+        this.mObjectCache = builder.mObjectCache;
+        this.mRouter = builder.mRouter;
+        this.mNormalizer = builder.mNormalizer;
+        this.mIndex = new CacheIndex(mCachingSystem);
+        this.mRefreshScheduler = new RefreshScheduler(mCacheExecutor);
     }
 
     public static CachedCallAdapterFactory create(@NonNull Context context, int appVersion) {
-        return new CachedCallAdapterFactory(RetroCache.getDualCache(context, appVersion), new Executor() {
-            @Override
-            public void execute(@NonNull Runnable command) {
-                new Handler(Looper.getMainLooper()).post(command);
-            }
-        });
+        return new Builder(RetroCache.getBinaryCache(context, appVersion)).build();
     }
 
     public static CachedCallAdapterFactory create(@NonNull Cache<String, byte[]> cachingSystem) {
-        return new CachedCallAdapterFactory(cachingSystem, new Executor() {
-            @Override
-            public void execute(@NonNull Runnable command) {
-                new Handler(Looper.getMainLooper()).post(command);
-            }
-        });
+        return new Builder(cachingSystem).build();
     }
 
     public static CachedCallAdapterFactory createWithExecutor(@NonNull Cache<String, byte[]> cachingSystem, @NonNull Executor executor) {
-        return new CachedCallAdapterFactory(cachingSystem, executor);
+        return new Builder(cachingSystem).callbackExecutor(executor).build();
+    }
+
+    /**
+     * Add the returned {@link Interceptor} to the {@link okhttp3.OkHttpClient} used by Retrofit to
+     * cache the response bytes exactly as received. Without it responses are serialized again
+     * with the request body converter before being cached.
+     *
+     * @return {@link Interceptor} capturing response bodies of {@link Cached} calls.
+     */
+    public Interceptor interceptor() {
+        return mCapture;
+    }
+
+    /**
+     * Fetch into the cache the responses of the given calls that are not cached yet, for example
+     * to warm the cache on start up, with {@link #DEFAULT_PREFETCH_PARALLELISM} requests in
+     * flight at most.
+     *
+     * @param calls {@link Cached} calls created by any {@link CachedCallAdapterFactory}.
+     * @return {@link Prefetch} handle to wait for the calls and read their outcome.
+     * @throws IllegalArgumentException if some call is not a {@link Cached} call.
+     */
+    public Prefetch prefetch(@NonNull Collection<? extends Call<?>> calls) {
+        return prefetch(calls, DEFAULT_PREFETCH_PARALLELISM, null);
+    }
+
+    /**
+     * Fetch into the cache the responses of the given calls that are not cached yet.
+     *
+     * @param calls       {@link Cached} calls created by any {@link CachedCallAdapterFactory}.
+     * @param parallelism maximum number of requests in flight.
+     * @param listener    notified on the callback executor once every call finished.
+     * @return {@link Prefetch} handle to wait for the calls and read their outcome.
+     * @throws IllegalArgumentException if some call is not a {@link Cached} call.
+     */
+    public Prefetch prefetch(@NonNull Collection<? extends Call<?>> calls, int parallelism,
+                             @Nullable Prefetch.Listener listener) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        List<Call<?>> cachedCalls = new ArrayList<>(calls.size());
+        for (Call<?> call : calls) {
+            if (!(call instanceof CachedCall)) {
+                throw new IllegalArgumentException("Only Cached calls can be prefetched: " + call);
+            }
+            cachedCalls.add(call);
+        }
+        Prefetch prefetch = new Prefetch(cachedCalls, parallelism, mCacheExecutor, mAsyncExecutor, listener);
+        prefetch.start();
+        return prefetch;
+    }
+
+    /**
+     * Keep the response of a hot endpoint cached, fetching it again every interval in the
+     * background so reads never wait for the network. Refreshes pause once the response was not
+     * read for {@link #DEFAULT_REFRESH_IDLE_INTERVALS} intervals.
+     *
+     * @param call     cached {@link Cached} call created by any {@link CachedCallAdapterFactory}.
+     * @param interval between refreshes, shorter than the life time of the response.
+     * @param unit     of the interval.
+     * @return {@link RefreshAhead} handle to stop the refreshes.
+     * @throws IllegalArgumentException if the responses of the call are not cached.
+     */
+    public RefreshAhead refreshAhead(@NonNull Call<?> call, long interval, @NonNull TimeUnit unit) {
+        return refreshAhead(call, interval, interval * DEFAULT_REFRESH_IDLE_INTERVALS, unit);
+    }
+
+    /**
+     * Keep the response of a hot endpoint cached, fetching it again every interval in the
+     * background so reads never wait for the network. Registering the same url again replaces
+     * the previous registration.
+     *
+     * @param call        cached {@link Cached} call created by any {@link CachedCallAdapterFactory}.
+     * @param interval    between refreshes, shorter than the life time of the response.
+     * @param idleTimeout refreshes pause when the response was not read for this long, and resume
+     *                    on the next read.
+     * @param unit        of the interval and the idle timeout.
+     * @return {@link RefreshAhead} handle to stop the refreshes.
+     * @throws IllegalArgumentException if the responses of the call are not cached.
+     */
+    public RefreshAhead refreshAhead(@NonNull Call<?> call, long interval, long idleTimeout,
+                                     @NonNull TimeUnit unit) {
+        if (!(call instanceof CachedCall)) {
+            throw new IllegalArgumentException("Only Cached calls can be refreshed: " + call);
+        }
+        if (!((CachedCall<?>) call).isCached()) {
+            throw new IllegalArgumentException("Only cached calls can be refreshed: " + call.request());
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("idleTimeout must be positive: " + idleTimeout);
+        }
+        return ((CachedCall<?>) call).scheduleRefreshes(unit.toMillis(interval), unit.toMillis(idleTimeout));
+    }
+
+    /**
+     * Remove every cached response whose url path starts with the given segments, for example
+     * {@code "/users/42"} after modifying that user removes {@code /users/42} and
+     * {@code /users/42/repos}. Only responses cached since this factory was created are found.
+     *
+     * @param path decoded url path prefix, including the path of the base url.
+     * @return number of responses removed.
+     */
+    public int invalidatePrefix(@NonNull String path) {
+        return removeDecoded(mIndex.invalidatePrefix(path));
+    }
+
+    /**
+     * Remove every cached response tagged by {@link com.andiag.commons.CacheTags}. Only responses
+     * cached since this factory was created are found.
+     *
+     * @param tag with its placeholders resolved, {@code "user:42"}.
+     * @return number of responses removed.
+     */
+    public int invalidateTag(@NonNull String tag) {
+        return removeDecoded(mIndex.invalidateTag(tag));
+    }
+
+    private int removeDecoded(List<String> keys) {
+        if (mObjectCache != null) {
+            for (String key : keys) {
+                mObjectCache.remove(key);
+            }
+        }
+        return keys.size();
     }
 
     @Override
@@ -61,8 +210,85 @@ public class CachedCallAdapterFactory extends CallAdapter.Factory {
             throw new IllegalStateException("Cached<?> must have generic type (e.g., Cached<ResponseBody>)");
         }
 
-        return new CachedCallAdapter<>(mAsyncExecutor, returnType, annotations, retrofit, mCachingSystem);
+        // Streaming bodies are read after the call returns so they can't be captured
+        ResponseCapture capture = mCapture.isInstalledIn(retrofit.callFactory())
+                && CacheUtils.findAnnotation(annotations, Streaming.class) == null ? mCapture : null;
+
+        return new CachedCallAdapter<>(this, returnType, annotations, retrofit, capture);
+
+    }
+
+    public static final class Builder {
+        private final Cache<String, byte[]> mCachingSystem;
+        private Executor mExecutor;
+        private Executor mCacheExecutor;
+        private ObjectCache mObjectCache;
+        private PartitionedCache.Router mRouter;
+        private UrlNormalizer mNormalizer = UrlNormalizer.DEFAULT;
+
+        public Builder(@NonNull Cache<String, byte[]> cachingSystem) {
+            this.mCachingSystem = cachingSystem;
+        }
+
+        /**
+         * @param executor used to deliver callbacks. Defaults to the main thread.
+         */
+        public Builder callbackExecutor(@NonNull Executor executor) {
+            this.mExecutor = executor;
+            return this;
+        }
 
+        /**
+         * @param executor used for cache lookups that may block on disk. Defaults to
+         *                 {@link CacheExecutor#getDefault()}. Entries found in RAM are always read
+         *                 on the calling thread.
+         */
+        public Builder cacheExecutor(@NonNull Executor executor) {
+            this.mCacheExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Keep decoded responses in memory so cache hits skip the converter. Only types declared
+         * in the {@link ObjectCache} are kept.
+         */
+        public Builder objectCache(@Nullable ObjectCache objectCache) {
+            this.mObjectCache = objectCache;
+            return this;
+        }
+
+        /**
+         * Choose the partition of the service methods without
+         * {@link com.andiag.commons.CachePartition}, when the cache is a {@link PartitionedCache}.
+         */
+        public Builder partitionRouter(@Nullable PartitionedCache.Router router) {
+            this.mRouter = router;
+            return this;
+        }
+
+        /**
+         * @param normalizer of the urls before they are keyed, to ignore tracking parameters or
+         *                   cache busters. Defaults to {@link UrlNormalizer#DEFAULT}.
+         */
+        public Builder urlNormalizer(@NonNull UrlNormalizer normalizer) {
+            this.mNormalizer = normalizer;
+            return this;
+        }
+
+        public CachedCallAdapterFactory build() {
+            if (mExecutor == null) {
+                mExecutor = new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        new Handler(Looper.getMainLooper()).post(command);
+                    }
+                };
+            }
+            if (mCacheExecutor == null) {
+                mCacheExecutor = CacheExecutor.getDefault();
+            }
+            return new CachedCallAdapterFactory(this);
+        }
     }
 
 }
@@ -0,0 +1,265 @@
+package com.andiag.retrocache;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.andiag.commons.CacheUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Handle of a bulk prefetch started with {@link CachedCallAdapterFactory#prefetch}. Calls with a
+ * fresh cached entry are skipped without decoding it, the others are fetched into the cache with
+ * at most a given number of requests in flight.
+ * <p>
+ * The calls passed in are never executed, clones of them are, so they can still be used.
+ */
+public final class Prefetch {
+
+    public enum Status {
+        /**
+         * A fresh entry was already cached.
+         */
+        SKIPPED,
+        /**
+         * The response was fetched or revalidated and cached.
+         */
+        FETCHED,
+        /**
+         * The request failed or the server answered with an error.
+         */
+        FAILED,
+        /**
+         * {@link #cancel()} was called before the call finished.
+         */
+        CANCELED
+    }
+
+    /**
+     * Notified once every call finished.
+     */
+    public interface Listener {
+
+        void onComplete(@NonNull Prefetch prefetch);
+    }
+
+    /**
+     * Outcome of a single call.
+     */
+    public static final class Item {
+        private final Call<?> mCall;
+        private final Status mStatus;
+        private final int mCode;
+        private final Throwable mError;
+
+        Item(Call<?> call, Status status, int code, Throwable error) {
+            this.mCall = call;
+            this.mStatus = status;
+            this.mCode = code;
+            this.mError = error;
+        }
+
+        /**
+         * @return call given to {@link CachedCallAdapterFactory#prefetch}.
+         */
+        public Call<?> getCall() {
+            return mCall;
+        }
+
+        public Status getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return HTTP status code of the response, 0 if there was none.
+         */
+        public int getCode() {
+            return mCode;
+        }
+
+        /**
+         * @return cause of a {@link Status#FAILED} call without response, null otherwise.
+         */
+        @Nullable
+        public Throwable getError() {
+            return mError;
+        }
+    }
+
+    private final List<Call<?>> mCalls;
+    private final CachedCall<?>[] mRunning;
+    private final Item[] mItems;
+    private final int mParallelism;
+    private final Executor mCacheExecutor;
+    private final Executor mCallbackExecutor;
+    private final Listener mListener;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private final AtomicInteger mRemaining;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mCanceled;
+
+    Prefetch(List<Call<?>> calls, int parallelism, Executor cacheExecutor, Executor callbackExecutor,
+             Listener listener) {
+        this.mCalls = calls;
+        this.mRunning = new CachedCall<?>[calls.size()];
+        this.mItems = new Item[calls.size()];
+        this.mParallelism = parallelism;
+        this.mCacheExecutor = cacheExecutor;
+        this.mCallbackExecutor = callbackExecutor;
+        this.mListener = listener;
+        this.mRemaining = new AtomicInteger(calls.size());
+    }
+
+    void start() {
+        if (mCalls.isEmpty()) {
+            complete();
+            return;
+        }
+        for (int i = 0; i < mParallelism; i++) {
+            next();
+        }
+    }
+
+    /**
+     * Start the next call, if any is left.
+     */
+    private void next() {
+        final int index = mNext.getAndIncrement();
+        if (index >= mCalls.size()) {
+            return;
+        }
+        // Disk reads may block so lookups run in the cache executor
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(index);
+            }
+        });
+    }
+
+    private <T> void load(final int index) {
+        if (mCanceled) {
+            finish(index, Status.CANCELED, 0, null);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        CachedCall<T> call = ((CachedCall<T>) mCalls.get(index)).cloneForPrefetch();
+        mRunning[index] = call;
+        boolean started;
+        try {
+            started = call.prefetch(new Callback<T>() {
+                @Override
+                public void onResponse(Call<T> call, Response<T> response) {
+                    // Stale responses are served because the request failed
+                    Status status = response.isSuccessful() && !CacheUtils.isStale(response) ? Status.FETCHED : Status.FAILED;
+                    finish(index, status, response.code(), null);
+                }
+
+                @Override
+                public void onFailure(Call<T> call, Throwable t) {
+                    finish(index, mCanceled ? Status.CANCELED : Status.FAILED, 0, t);
+                }
+            });
+        } catch (RuntimeException exc) {
+            finish(index, Status.FAILED, 0, exc);
+            return;
+        }
+        if (!started) {
+            finish(index, Status.SKIPPED, 0, null);
+        }
+    }
+
+    private void finish(int index, Status status, int code, Throwable error) {
+        mRunning[index] = null;
+        mItems[index] = new Item(mCalls.get(index), status, code, error);
+        if (mRemaining.decrementAndGet() == 0) {
+            complete();
+        } else {
+            next();
+        }
+    }
+
+    private void complete() {
+        mDone.countDown();
+        if (mListener != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onComplete(Prefetch.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancel the calls in flight. Calls not started yet finish as {@link Status#CANCELED}.
+     */
+    public void cancel() {
+        mCanceled = true;
+        for (CachedCall<?> call : mRunning) {
+            if (call != null) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return true once every call finished.
+     */
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * Block until every call finished.
+     */
+    public void await() throws InterruptedException {
+        mDone.await();
+    }
+
+    /**
+     * Block until every call finished or the timeout expires.
+     *
+     * @return true if every call finished.
+     */
+    public boolean await(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    /**
+     * @return outcome of every call, in the order they were given.
+     * @throws IllegalStateException if some call did not finish yet.
+     */
+    public List<Item> getItems() {
+        if (!isDone()) {
+            throw new IllegalStateException("Prefetch not finished");
+        }
+        return Collections.unmodifiableList(Arrays.asList(mItems));
+    }
+
+    /**
+     * @return calls that finished with the given status.
+     * @throws IllegalStateException if some call did not finish yet.
+     */
+    public List<Call<?>> getCalls(@NonNull Status status) {
+        List<Call<?>> calls = new ArrayList<>();
+        for (Item item : getItems()) {
+            if (item.getStatus() == status) {
+                calls.add(item.getCall());
+            }
+        }
+        return calls;
+    }
+
+}
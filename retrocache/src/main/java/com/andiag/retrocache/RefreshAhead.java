@@ -0,0 +1,157 @@
+package com.andiag.retrocache;
+
+import com.andiag.commons.CacheUtils;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Handle of a call registered with {@link CachedCallAdapterFactory#refreshAhead}. Its response is
+ * fetched again every interval in the background, so reads of hot endpoints keep hitting a fresh
+ * entry. Refreshes send conditional requests when the entry has validators and keep the cached
+ * entry when they fail.
+ * <p>
+ * Failed refreshes double the delay before the next one, up to {@link #MAX_BACKOFF} intervals,
+ * so an offline device does not keep retrying. Refreshes pause when the response was not read
+ * for the idle timeout and resume on the next read.
+ * <p>
+ * The registered call is never executed, clones of it are, so it can still be used.
+ */
+public final class RefreshAhead {
+    public static final int MAX_BACKOFF = 32;
+
+    private final RefreshScheduler mScheduler;
+    private final CachedCall<?> mCall;
+    private final String mKey;
+    private final long mIntervalMillis;
+    private final long mIdleMillis;
+    private volatile long mLastRead = System.currentTimeMillis();
+    private volatile CachedCall<?> mRunning;
+    private volatile int mFailures;
+    private boolean mPaused;
+    private boolean mCanceled;
+    // Skip the request while the entry is fresh, on the first run and after a pause
+    private boolean mSkipFresh = true;
+
+    RefreshAhead(RefreshScheduler scheduler, CachedCall<?> call, long intervalMillis, long idleMillis) {
+        this.mScheduler = scheduler;
+        this.mCall = call;
+        this.mKey = call.key();
+        this.mIntervalMillis = intervalMillis;
+        this.mIdleMillis = idleMillis;
+    }
+
+    String key() {
+        return mKey;
+    }
+
+    /**
+     * Record a read of the response, resuming the refreshes if they were paused.
+     */
+    void touch() {
+        mLastRead = System.currentTimeMillis();
+        synchronized (this) {
+            if (!mPaused || mCanceled) {
+                return;
+            }
+            mPaused = false;
+            mSkipFresh = true;
+        }
+        mScheduler.schedule(this, 0);
+    }
+
+    /**
+     * Refresh the response, called by the {@link RefreshScheduler} in the cache executor.
+     */
+    void run() {
+        boolean skipFresh;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            if (System.currentTimeMillis() - mLastRead > mIdleMillis) {
+                // Nobody reads it, wait for the next read
+                mPaused = true;
+                return;
+            }
+            skipFresh = mSkipFresh;
+            mSkipFresh = false;
+        }
+        refresh(mCall.cloneForPrefetch(), skipFresh);
+    }
+
+    private <T> void refresh(CachedCall<T> call, boolean skipFresh) {
+        mRunning = call;
+        Callback<T> callback = new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                // Stale responses are served because the request failed
+                finish(response.isSuccessful() && !CacheUtils.isStale(response));
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                finish(false);
+            }
+        };
+        try {
+            if (!skipFresh) {
+                call.refreshAhead(callback);
+            } else if (!call.prefetch(callback)) {
+                // Still fresh
+                finish(true);
+            }
+        } catch (RuntimeException exc) {
+            finish(false);
+        }
+    }
+
+    private void finish(boolean success) {
+        mRunning = null;
+        int failures = success ? 0 : mFailures + 1;
+        mFailures = failures;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+        }
+        mScheduler.schedule(this, mIntervalMillis * Math.min(1L << Math.min(failures, 30), MAX_BACKOFF));
+    }
+
+    /**
+     * Stop refreshing the response, cancelling the refresh in flight. The cached entry is kept.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+        }
+        mScheduler.unregister(this);
+        CachedCall<?> running = mRunning;
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * @return true if refreshes are paused until the response is read again.
+     */
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return consecutive failed refreshes.
+     */
+    public int getFailures() {
+        return mFailures;
+    }
+
+}
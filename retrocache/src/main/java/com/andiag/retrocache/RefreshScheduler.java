@@ -0,0 +1,82 @@
+package com.andiag.retrocache;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link RefreshAhead} registrations of a factory. The timer thread is only created
+ * once a call is registered, refreshes themselves run in the cache executor since they read the
+ * cache.
+ */
+final class RefreshScheduler {
+    private final Executor mCacheExecutor;
+    private final ConcurrentMap<String, RefreshAhead> mRegistrations = new ConcurrentHashMap<>();
+    private ScheduledExecutorService mTimer;
+
+    RefreshScheduler(Executor cacheExecutor) {
+        this.mCacheExecutor = cacheExecutor;
+    }
+
+    /**
+     * Start refreshing a call, replacing the previous registration of the same url.
+     */
+    RefreshAhead register(CachedCall<?> call, long intervalMillis, long idleMillis) {
+        RefreshAhead registration = new RefreshAhead(this, call, intervalMillis, idleMillis);
+        RefreshAhead previous = mRegistrations.put(registration.key(), registration);
+        if (previous != null) {
+            previous.cancel();
+        }
+        schedule(registration, 0);
+        return registration;
+    }
+
+    void unregister(RefreshAhead registration) {
+        mRegistrations.remove(registration.key(), registration);
+    }
+
+    /**
+     * Record a read of the key, to keep its registration running.
+     */
+    void touch(String key) {
+        RefreshAhead registration = mRegistrations.get(key);
+        if (registration != null) {
+            registration.touch();
+        }
+    }
+
+    void schedule(final RefreshAhead registration, long delayMillis) {
+        timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mCacheExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.run();
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (mTimer == null) {
+            mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RetroCache-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mTimer;
+    }
+
+}
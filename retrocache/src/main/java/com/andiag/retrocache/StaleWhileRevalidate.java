@@ -0,0 +1,18 @@
+package com.andiag.retrocache;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Make {@link Cached#enqueue(retrofit2.Callback)} behave like
+ * {@link Cached#revalidate(retrofit2.Callback)} for a service method: cached responses are
+ * delivered right away and fetched again in the background.
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface StaleWhileRevalidate {
+}
@@ -1,5 +1,16 @@
 package com.andiag.retrocache;
 
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CacheTtl;
+import com.andiag.commons.CacheablePost;
+import com.andiag.commons.CacheUtils;
+import com.andiag.commons.NegativeCacheTtl;
+import com.andiag.commons.StaleIfError;
+import com.andiag.commons.VaryHeaders;
+import com.andiag.commons.cache.ObjectCache;
+import com.andiag.commons.cache.TieredCache;
+import com.andiag.commons.key.UrlNormalizer;
 import com.andiag.retrocache.cache.MainThreadExecutor;
 import com.andiag.retrocache.cache.MockCachingSystem;
 import com.andiag.retrocache.cache.ToStringConverterFactory;
@@ -12,16 +23,27 @@ import org.junit.Test;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.Interceptor;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.SocketPolicy;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ForwardingSource;
 import okio.Okio;
@@ -31,9 +53,15 @@ import retrofit2.Callback;
 import retrofit2.Converter;
 import retrofit2.Response;
 import retrofit2.Retrofit;
+import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
+import retrofit2.http.POST;
 import retrofit2.http.Streaming;
+import retrofit2.http.Url;
 
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static junit.framework.Assert.assertNull;
 import static okhttp3.mockwebserver.SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY;
@@ -61,6 +89,50 @@ public class CachedCallTest {
         @Streaming
         Cached<ResponseBody> getStreamingBody();
 
+        @GET("/")
+        @StaleWhileRevalidate
+        Cached<String> getRevalidatedString();
+
+        @GET("/")
+        @CacheTtl(value = 500, unit = MILLISECONDS)
+        Cached<String> getShortLivedString();
+
+        @GET("/")
+        @NegativeCacheTtl(60)
+        Cached<String> getNegativeCachedString();
+
+        @GET("/")
+        @StaleIfError(60)
+        Cached<String> getStaleIfErrorString();
+
+        @POST("/search")
+        @CacheablePost
+        Cached<String> search(@Body String query);
+
+        @POST("/search")
+        Cached<String> uncachedSearch(@Body String query);
+
+        @GET("/")
+        @CacheablePost
+        Cached<String> getCacheablePostString();
+
+        @GET
+        Cached<String> getUrl(@Url String url);
+
+        @POST("/search")
+        @CacheablePost
+        Cached<String> searchBody(@Body RequestBody query);
+
+        @GET("/")
+        @VaryHeaders("Accept-Language")
+        Cached<String> getLocalizedString(@Header("Accept-Language") String language);
+
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
     }
 
     private CallAdapter.Factory buildSmartCacheFactory() {
@@ -726,6 +798,731 @@ public class CachedCallTest {
         assertThat(response.body()).isEqualTo("Refreshed Hi");
     }
 
+    @Test
+    public void interceptorCachesRawBytes() throws IOException {
+        CachedCallAdapterFactory factory = CachedCallAdapterFactory.createWithExecutor(
+                mMockCachingSystem, new MainThreadExecutor());
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(factory.interceptor())
+                .build();
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .client(client)
+                .addConverterFactory(new ToStringConverterFactory() {
+                    @Override
+                    public Converter<?, RequestBody> requestBodyConverter(
+                            Type type,
+                            Annotation[] parameterAnnotations,
+                            Annotation[] methodAnnotations,
+                            Retrofit retrofit) {
+
+                        return new Converter<String, RequestBody>() {
+                            @Override
+                            public RequestBody convert(String value) throws IOException {
+                                throw new AssertionError("Body must not be serialized again");
+                            }
+                        };
+                    }
+                })
+                .addCallAdapterFactory(factory)
+                .build();
+        Service example = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+
+        Cached<String> call = example.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(mMockCachingSystem.get(Utils.urlToKey(call.request().url())))
+                .isEqualTo("Hi".getBytes("UTF-8"));
+    }
+
+    @Test
+    public void objectCacheSkipsConverter() throws IOException {
+        final AtomicInteger conversions = new AtomicInteger();
+        ObjectCache objectCache = new ObjectCache(10);
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory() {
+                    @Override
+                    public Converter<ResponseBody, ?> responseBodyConverter(Type type,
+                                                                            Annotation[] annotations,
+                                                                            Retrofit retrofit) {
+                        return new Converter<ResponseBody, String>() {
+                            @Override
+                            public String convert(ResponseBody value) throws IOException {
+                                conversions.incrementAndGet();
+                                return value.string();
+                            }
+                        };
+                    }
+                })
+                .addCallAdapterFactory(new CachedCallAdapterFactory.Builder(mMockCachingSystem)
+                        .callbackExecutor(new MainThreadExecutor())
+                        .objectCache(objectCache)
+                        .build())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(conversions.get()).isEqualTo(1);
+
+        // Replaced bytes are decoded again
+        mMockCachingSystem.put(Utils.urlToKey(call.request().url()), "Hello".getBytes("UTF-8"));
+        assertThat(call.clone().execute().body()).isEqualTo("Hello");
+        assertThat(conversions.get()).isEqualTo(2);
+
+        call.remove();
+        assertThat(objectCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void concurrentCallsShareRequest() throws InterruptedException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi").setBodyDelay(500, MILLISECONDS));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<String> firstRef = new AtomicReference<>();
+        final AtomicReference<String> secondRef = new AtomicReference<>();
+        service.getString().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                firstRef.set(response.body());
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        service.getString().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                secondRef.set(response.body());
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+
+        assertThat(firstRef.get()).isEqualTo("Hi");
+        assertThat(secondRef.get()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentCallsShareErrorResponse() throws InterruptedException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setResponseCode(404).setBody("Missing").setBodyDelay(500, MILLISECONDS));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<Response<String>> firstRef = new AtomicReference<>();
+        final AtomicReference<Response<String>> secondRef = new AtomicReference<>();
+        service.getString().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                firstRef.set(response);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        service.getString().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                secondRef.set(response);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+
+        assertThat(firstRef.get().code()).isEqualTo(404);
+        assertThat(secondRef.get().code()).isEqualTo(404);
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void ramHitSkipsCacheExecutor() throws Exception {
+        MockCachingSystem ram = new MockCachingSystem();
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(new CachedCallAdapterFactory.Builder(
+                        new TieredCache(ram, new MockCachingSystem()))
+                        .callbackExecutor(new MainThreadExecutor())
+                        .cacheExecutor(new Executor() {
+                            @Override
+                            public void execute(@NonNull Runnable command) {
+                                throw new AssertionError("RAM hits must not be queued");
+                            }
+                        })
+                        .build())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        Cached<String> call = service.getString();
+        ram.put(Utils.urlToKey(call.request().url()), "Hi".getBytes("UTF-8"));
+
+        final AtomicReference<String> bodyRef = new AtomicReference<>();
+        call.enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                bodyRef.set(response.body());
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertThat(bodyRef.get()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void revalidateDeliversChangedBody() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        Cached<String> call = service.getString();
+        String key = Utils.urlToKey(call.request().url());
+        mMockCachingSystem.put(key, "Hi".getBytes("UTF-8"));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        final LinkedBlockingQueue<String> bodies = new LinkedBlockingQueue<>();
+        call.revalidate(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                bodies.add(response.body());
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertThat(bodies.poll(10, SECONDS)).isEqualTo("Hi");
+        assertThat(bodies.poll(10, SECONDS)).isEqualTo("Hello");
+        assertThat(new String(mMockCachingSystem.get(key), "UTF-8")).isEqualTo("Hello");
+    }
+
+    @Test
+    public void revalidateSkipsUnchangedBody() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        Cached<String> call = service.getRevalidatedString();
+        mMockCachingSystem.put(Utils.urlToKey(call.request().url()), "Hi".getBytes("UTF-8"));
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+
+        final LinkedBlockingQueue<String> bodies = new LinkedBlockingQueue<>();
+        call.enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                bodies.add(response.body());
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertThat(bodies.poll(10, SECONDS)).isEqualTo("Hi");
+        assertNotNull(mServer.takeRequest(10, SECONDS));
+        assertNull(bodies.poll(500, MILLISECONDS));
+    }
+
+    @Test
+    public void freshEntryServedFromCache() throws IOException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=60"));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void entryExpiresAfterTtl() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        // The annotation overrides the lifetime declared by the server
+        mServer.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=60"));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        Cached<String> call = service.getShortLivedString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+
+        Thread.sleep(1000);
+        assertThat(call.clone().execute().body()).isEqualTo("Hello");
+    }
+
+    @Test
+    public void postCachedByBody() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+        mServer.enqueue(new MockResponse().setBody("Hey"));
+
+        assertThat(service.search("retrofit").execute().body()).isEqualTo("Hi");
+        assertThat(service.search("retrofit").execute().body()).isEqualTo("Hi");
+        assertThat(mServer.takeRequest().getBody().readUtf8()).isEqualTo("retrofit");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+
+        // Other bodies and methods not opted in are not served from the cache
+        assertThat(service.search("okhttp").execute().body()).isEqualTo("Hello");
+        assertThat(service.uncachedSearch("retrofit").execute().body()).isEqualTo("Hey");
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+        assertThat(mMockCachingSystem.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void keyComputedOncePerCall() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        final AtomicInteger writes = new AtomicInteger();
+        RequestBody query = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.parse("text/plain");
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                writes.incrementAndGet();
+                sink.writeUtf8("retrofit");
+            }
+        };
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+
+        Cached<String> call = service.searchBody(query);
+        assertThat(call.request()).isSameAs(call.request());
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        // Hashed once for the key and written once to the network
+        assertThat(writes.get()).isEqualTo(2);
+
+        // Clones share the arguments and reuse the key
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(writes.get()).isEqualTo(2);
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void cacheablePostOnGetThrows() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        try {
+            retrofit.create(Service.class).getCacheablePostString();
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("@CacheablePost can only be used on POST methods");
+        }
+    }
+
+    @Test
+    public void varyHeadersKeyedByValue() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+        mServer.enqueue(new MockResponse().setBody("Hola"));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        assertThat(service.getLocalizedString("en").execute().body()).isEqualTo("Hi");
+        assertThat(service.getLocalizedString("es").execute().body()).isEqualTo("Hola");
+        assertThat(service.getLocalizedString("en").execute().body()).isEqualTo("Hi");
+        assertThat(service.getLocalizedString("es").execute().body()).isEqualTo("Hola");
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+
+        // A missing header is a variant of its own, not shared with the plain url
+        assertThat(service.getLocalizedString(null).execute().body()).isEqualTo("Hello");
+        assertThat(mMockCachingSystem.contains(CacheUtils.urlToKey(mServer.url("/")))).isFalse();
+        assertThat(mMockCachingSystem.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void equivalentUrlsShareEntry() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(new CachedCallAdapterFactory.Builder(mMockCachingSystem)
+                        .callbackExecutor(new MainThreadExecutor())
+                        .urlNormalizer(new UrlNormalizer.Builder().ignore("utm_*", "_").build())
+                        .build())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+        mServer.enqueue(new MockResponse().setBody("Hello"));
+
+        assertThat(service.getUrl("/items/%7e?b=2&a=%2f").execute().body()).isEqualTo("Hi");
+        assertThat(service.getUrl("/items/~?a=%2F&b=2").execute().body()).isEqualTo("Hi");
+        assertThat(service.getUrl("/items/%7E?utm_source=mail&a=%2f&_=1500000000&b=2#top").execute().body()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+
+        // Repeated parameters keep their order
+        assertThat(service.getUrl("/items/~?a=1&a=2").execute().body()).isEqualTo("Hello");
+        mServer.enqueue(new MockResponse().setBody("Hey"));
+        assertThat(service.getUrl("/items/~?a=2&a=1").execute().body()).isEqualTo("Hey");
+        assertThat(mMockCachingSystem.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void clientErrorReplayedFromCache() throws IOException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setResponseCode(404).setBody("Missing"));
+
+        Cached<String> call = service.getNegativeCachedString();
+        assertThat(call.execute().code()).isEqualTo(404);
+
+        Response<String> response = call.clone().execute();
+        assertThat(response.code()).isEqualTo(404);
+        assertThat(response.errorBody().string()).isEqualTo("Missing");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void authenticationErrorNotCached() throws IOException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setResponseCode(401));
+        mServer.enqueue(new MockResponse().setBody("Hi"));
+
+        Cached<String> call = service.getNegativeCachedString();
+        assertThat(call.execute().code()).isEqualTo(401);
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+    }
+
+    @Test
+    public void staleEntryServedOnServerError() throws IOException {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "max-age=0"));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+
+        Cached<String> call = service.getStaleIfErrorString();
+        Response<String> fresh = call.execute();
+        assertThat(fresh.body()).isEqualTo("Hi");
+        assertThat(CacheUtils.isStale(fresh)).isFalse();
+
+        Response<String> stale = call.clone().execute();
+        assertThat(stale.isSuccessful()).isTrue();
+        assertThat(stale.body()).isEqualTo("Hi");
+        assertThat(CacheUtils.isStale(stale)).isTrue();
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+
+        // Methods without the annotation get the error
+        assertThat(service.getString().execute().code()).isEqualTo(503);
+    }
+
+    @Test
+    public void staleEntryServedOnNetworkFailureAsync() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi").addHeader("Cache-Control", "no-cache"));
+
+        Cached<String> call = service.getStaleIfErrorString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        mServer.shutdown();
+
+        final AtomicReference<Response<String>> responseRef = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        call.clone().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                responseRef.set(response);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+        assertThat(responseRef.get().body()).isEqualTo("Hi");
+        assertThat(CacheUtils.isStale(responseRef.get())).isTrue();
+    }
+
+    @Test
+    public void expiredEntryRevalidatedWithEtag() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi")
+                .addHeader("Cache-Control", "max-age=0")
+                .addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+        mServer.enqueue(new MockResponse().setBody("Hello")
+                .addHeader("Cache-Control", "max-age=60")
+                .addHeader("ETag", "\"v2\""));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+
+        // Not modified, the cached body is reused
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+
+        // Modified, the new body replaces the cached one
+        assertThat(call.clone().execute().body()).isEqualTo("Hello");
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+
+        assertThat(call.clone().execute().body()).isEqualTo("Hello");
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void notModifiedWithoutFreshnessRestartsLifetime() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        // Already expired when received
+        mServer.enqueue(new MockResponse().setBody("Hi")
+                .addHeader("Cache-Control", "max-age=60")
+                .addHeader("Age", "61")
+                .addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304).addHeader("ETag", "\"v1\""));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        mServer.takeRequest();
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+
+        // The stored max-age applies again from the 304
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void etagOnlyEntryRevalidatedOnEveryRead() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi").addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        mServer.takeRequest();
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    }
+
+    @Test
+    public void lastModifiedEntryGetsHeuristicLifetime() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        // Unchanged for ten days, fresh for one
+        long now = System.currentTimeMillis();
+        mServer.enqueue(new MockResponse().setBody("Hi")
+                .addHeader("Date", httpDate(now))
+                .addHeader("Last-Modified", httpDate(now - DAYS.toMillis(10))));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        assertThat(call.clone().execute().body()).isEqualTo("Hi");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void expiredEntryRevalidatedWithLastModifiedAsync() throws Exception {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(buildSmartCacheFactory())
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        String lastModified = "Wed, 21 Oct 2015 07:28:00 GMT";
+        mServer.enqueue(new MockResponse().setBody("Hi")
+                .addHeader("Cache-Control", "no-cache")
+                .addHeader("Last-Modified", lastModified));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        mServer.takeRequest();
+
+        final AtomicReference<Response<String>> responseRef = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        call.clone().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                responseRef.set(response);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+        assertThat(responseRef.get().body()).isEqualTo("Hi");
+        assertThat(mServer.takeRequest().getHeader("If-Modified-Since")).isEqualTo(lastModified);
+    }
+
+    @Test
+    public void conditionalRequestDeliversCacheFailure() throws Exception {
+        final AtomicBoolean broken = new AtomicBoolean();
+        MockCachingSystem cachingSystem = new MockCachingSystem() {
+            @Override
+            public byte[] put(String key, byte[] value) {
+                if (broken.get()) {
+                    throw new IllegalStateException("Broken cache");
+                }
+                return super.put(key, value);
+            }
+        };
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(CachedCallAdapterFactory.createWithExecutor(cachingSystem, new MainThreadExecutor()))
+                .build();
+        Service service = retrofit.create(Service.class);
+
+        mServer.enqueue(new MockResponse().setBody("Hi")
+                .addHeader("Cache-Control", "max-age=0")
+                .addHeader("ETag", "\"v1\""));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        Cached<String> call = service.getString();
+        assertThat(call.execute().body()).isEqualTo("Hi");
+        broken.set(true);
+
+        final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        call.clone().enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                throw new AssertionError();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+                failureRef.set(t);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+        assertThat(failureRef.get()).isInstanceOf(IllegalStateException.class).hasMessage("Broken cache");
+    }
+
     @Test
     public void refresh404Call() throws Exception {
         Retrofit retrofit = new Retrofit.Builder()
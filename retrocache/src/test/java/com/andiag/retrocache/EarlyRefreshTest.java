@@ -0,0 +1,108 @@
+package com.andiag.retrocache;
+
+import com.andiag.commons.CacheTtl;
+import com.andiag.commons.EarlyRefresh;
+import com.andiag.retrocache.cache.MainThreadExecutor;
+import com.andiag.retrocache.cache.MockCachingSystem;
+import com.andiag.retrocache.cache.ToStringConverterFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class EarlyRefreshTest {
+
+    @Rule
+    public final MockWebServer mServer = new MockWebServer();
+    private final AtomicInteger mVersion = new AtomicInteger();
+    private Service mService;
+
+    interface Service {
+        @GET("/")
+        @CacheTtl(60)
+        @EarlyRefresh(beta = 1e9)
+        Cached<String> eager();
+
+        @GET("/")
+        @CacheTtl(value = 1, unit = HOURS)
+        @EarlyRefresh
+        Cached<String> lazy();
+
+        @GET("/")
+        @EarlyRefresh(beta = 0)
+        Cached<String> invalidBeta();
+    }
+
+    @Before
+    public void setUp() {
+        // Slow server answering a new version each time
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(20);
+                int version = mVersion.incrementAndGet();
+                return new MockResponse().setBody("v" + version).setHeader("ETag", "\"" + version + "\"");
+            }
+        });
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(CachedCallAdapterFactory.createWithExecutor(
+                        new MockCachingSystem(), new MainThreadExecutor()))
+                .build();
+        mService = retrofit.create(Service.class);
+    }
+
+    @Test
+    public void refreshedBeforeExpiry() throws Exception {
+        assertThat(mService.eager().execute().body()).isEqualTo("v1");
+
+        // Served from the cache while the refresh runs
+        assertThat(mService.eager().execute().body()).isEqualTo("v1");
+        mServer.takeRequest();
+        RecordedRequest refresh = mServer.takeRequest(5, SECONDS);
+        assertThat(refresh).isNotNull();
+        assertThat(refresh.getHeader("If-None-Match")).isEqualTo("\"1\"");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mService.eager().execute().body().equals("v2")) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Entry not refreshed");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void notRefreshedFarFromExpiry() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            assertThat(mService.lazy().execute().body()).isEqualTo("v1");
+        }
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void invalidBetaThrows() {
+        try {
+            mService.invalidBeta();
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("@EarlyRefresh beta must be positive: 0.0");
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.andiag.retrocache;
+
+import com.andiag.commons.CacheTags;
+import com.andiag.commons.Invalidates;
+import com.andiag.commons.VaryHeaders;
+import com.andiag.retrocache.cache.MainThreadExecutor;
+import com.andiag.retrocache.cache.MockCachingSystem;
+import com.andiag.retrocache.cache.ToStringConverterFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.Header;
+import retrofit2.http.PUT;
+import retrofit2.http.Path;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InvalidationTest {
+
+    @Rule
+    public final MockWebServer mServer = new MockWebServer();
+    private CachedCallAdapterFactory mFactory;
+    private Service mService;
+
+    interface Service {
+        @GET("/users/{id}")
+        @CacheTags("user:{id}")
+        Cached<String> user(@Path("id") String id);
+
+        @GET("/users/{id}/repos")
+        @CacheTags({"user:{id}", "repos"})
+        Cached<String> repos(@Path("id") String id);
+
+        @GET("/avatars/{id}.png")
+        @CacheTags("avatar:{id}")
+        Cached<String> avatar(@Path("id") String id);
+
+        @GET("/users")
+        @CacheTags("user:{id}")
+        Cached<String> unknownPlaceholder();
+
+        @PUT("/users/{id}")
+        @Invalidates(value = "users/{id}", tags = "repos")
+        Cached<String> updateUser(@Path("id") String id);
+
+        @DELETE("/users/{id}")
+        @Invalidates
+        Cached<String> deleteUser(@Path("id") String id);
+
+        @GET("/users/{id}")
+        @Invalidates
+        Cached<String> invalidatingGet(@Path("id") String id);
+
+        @GET("/users/{id}")
+        @VaryHeaders("Accept-Language")
+        Cached<String> localizedUser(@Path("id") String id, @Header("Accept-Language") String language);
+    }
+
+    @Before
+    public void setUp() {
+        // Echo the path back
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (!request.getMethod().equals("GET") && request.getPath().endsWith("/locked")) {
+                    return new MockResponse().setResponseCode(409);
+                }
+                return new MockResponse().setBody(request.getPath());
+            }
+        });
+        mFactory = CachedCallAdapterFactory.createWithExecutor(new MockCachingSystem(), new MainThreadExecutor());
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(mFactory)
+                .build();
+        mService = retrofit.create(Service.class);
+    }
+
+    @Test
+    public void invalidatePrefix() throws Exception {
+        mService.user("42").execute();
+        mService.repos("42").execute();
+        mService.user("420").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+
+        assertThat(mFactory.invalidatePrefix("/users/42")).isEqualTo(2);
+        assertThat(mFactory.invalidatePrefix("/users/42")).isEqualTo(0);
+
+        mService.user("420").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+        assertThat(mService.repos("42").execute().body()).isEqualTo("/users/42/repos");
+        assertThat(mServer.getRequestCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void invalidateTag() throws Exception {
+        mService.user("42").execute();
+        mService.repos("42").execute();
+        mService.repos("7").execute();
+        mService.avatar("42").execute();
+
+        assertThat(mFactory.invalidateTag("user:42")).isEqualTo(2);
+        assertThat(mFactory.invalidateTag("repos")).isEqualTo(1);
+        assertThat(mFactory.invalidateTag("avatar:42")).isEqualTo(1);
+        assertThat(mFactory.invalidateTag("user:7")).isEqualTo(0);
+
+        mService.user("42").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void removedCallsAreNotInvalidated() throws Exception {
+        Cached<String> call = mService.user("42");
+        call.execute();
+        call.remove();
+
+        assertThat(mFactory.invalidateTag("user:42")).isEqualTo(0);
+        assertThat(mFactory.invalidatePrefix("/")).isEqualTo(0);
+    }
+
+    @Test
+    public void mutatingCallInvalidatesPathsAndTags() throws Exception {
+        mService.user("42").execute();
+        mService.repos("42").execute();
+        mService.repos("7").execute();
+        mService.user("7").execute();
+
+        assertThat(mService.updateUser("42").execute().isSuccessful()).isTrue();
+        assertThat(mServer.getRequestCount()).isEqualTo(5);
+
+        mService.user("42").execute();
+        mService.repos("42").execute();
+        mService.repos("7").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(8);
+        mService.user("7").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(8);
+    }
+
+    @Test
+    public void mutatingCallInvalidatesSameUrl() throws Exception {
+        mService.user("42").execute();
+        mService.repos("42").execute();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mService.deleteUser("42").enqueue(new Callback<String>() {
+            @Override
+            public void onResponse(Call<String> call, Response<String> response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<String> call, Throwable t) {
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+
+        mService.repos("42").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+        mService.user("42").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void mutatingCallInvalidatesVariants() throws Exception {
+        mService.localizedUser("42", "en").execute();
+        mService.localizedUser("42", "es").execute();
+
+        assertThat(mService.deleteUser("42").execute().isSuccessful()).isTrue();
+
+        mService.localizedUser("42", "en").execute();
+        mService.localizedUser("42", "es").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void failedMutatingCallKeepsEntries() throws Exception {
+        mService.user("locked").execute();
+
+        assertThat(mService.updateUser("locked").execute().code()).isEqualTo(409);
+
+        mService.user("locked").execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void invalidatingGetThrows() {
+        try {
+            mService.invalidatingGet("42");
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("@Invalidates can't be used on GET methods: /users/{id}");
+        }
+    }
+
+    @Test
+    public void unknownPlaceholderThrows() {
+        try {
+            mService.unknownPlaceholder();
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("@CacheTags placeholder {id} is not a path parameter of /users");
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.andiag.retrocache;
+
+import android.support.annotation.NonNull;
+
+import com.andiag.commons.CachePartition;
+import com.andiag.commons.cache.PartitionedCache;
+import com.andiag.commons.cache.TinyLfuCache;
+import com.andiag.retrocache.cache.MainThreadExecutor;
+import com.andiag.retrocache.cache.MockCachingSystem;
+import com.andiag.retrocache.cache.ToStringConverterFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Path;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class PartitionTest {
+
+    @Rule
+    public final MockWebServer mServer = new MockWebServer();
+    private MockCachingSystem mDefault;
+    private TinyLfuCache mImages;
+    private PartitionedCache mCache;
+    private CachedCallAdapterFactory mFactory;
+    private Service mService;
+
+    interface Service {
+        @GET("/config")
+        Cached<String> config();
+
+        @GET("/images/{id}")
+        @CachePartition("images")
+        Cached<String> image(@Path("id") int id);
+
+        @GET("/thumbnails/{id}")
+        Cached<String> thumbnail(@Path("id") int id);
+
+        @GET("/config")
+        @CachePartition("missing")
+        Cached<String> missingPartition();
+    }
+
+    @Before
+    public void setUp() {
+        // Echo the path back, padded to 500 bytes
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                StringBuilder body = new StringBuilder(request.getPath());
+                while (body.length() < 500) {
+                    body.append(' ');
+                }
+                return new MockResponse().setBody(body.toString());
+            }
+        });
+        mDefault = new MockCachingSystem();
+        mImages = new TinyLfuCache(4 * 1024);
+        mCache = new PartitionedCache.Builder(mDefault).partition("images", mImages).build();
+        mFactory = new CachedCallAdapterFactory.Builder(mCache)
+                .callbackExecutor(new MainThreadExecutor())
+                .partitionRouter(new PartitionedCache.Router() {
+                    @Override
+                    public String partition(@NonNull Annotation[] annotations, @NonNull Type responseType) {
+                        for (Annotation annotation : annotations) {
+                            if (annotation instanceof GET && ((GET) annotation).value().startsWith("/thumbnails")) {
+                                return "images";
+                            }
+                        }
+                        return null;
+                    }
+                })
+                .build();
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(mFactory)
+                .build();
+        mService = retrofit.create(Service.class);
+    }
+
+    @Test
+    public void methodsRoutedToTheirPartition() throws Exception {
+        mService.config().execute();
+        mService.image(1).execute();
+        mService.thumbnail(1).execute();
+
+        assertThat(mDefault.size()).isEqualTo(1);
+        assertThat(mImages.size()).isEqualTo(2);
+
+        mService.image(1).execute();
+        mService.thumbnail(1).execute();
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void bulkPartitionDoesNotEvictOthers() throws Exception {
+        mService.config().execute();
+        for (int i = 0; i < 50; i++) {
+            mService.image(i).execute();
+        }
+        assertThat(mImages.weight()).isLessThanOrEqualTo(4 * 1024);
+
+        assertThat(mService.config().execute().body()).startsWith("/config");
+        assertThat(mServer.getRequestCount()).isEqualTo(51);
+    }
+
+    @Test
+    public void invalidationReachesEveryPartition() throws Exception {
+        mService.config().execute();
+        mService.image(1).execute();
+
+        assertThat(mFactory.invalidatePrefix("/")).isEqualTo(2);
+        assertThat(mCache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void unknownPartitionThrows() {
+        try {
+            mService.missingPartition();
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("Unknown cache partition: missing");
+        }
+    }
+
+    @Test
+    public void partitionRequiresPartitionedCache() {
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(CachedCallAdapterFactory.create(new MockCachingSystem()))
+                .build();
+        try {
+            retrofit.create(Service.class).image(1);
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc.getCause()).hasMessage("@CachePartition requires a PartitionedCache: images");
+        }
+    }
+
+}
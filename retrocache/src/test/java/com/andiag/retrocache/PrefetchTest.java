@@ -0,0 +1,139 @@
+package com.andiag.retrocache;
+
+import com.andiag.retrocache.cache.MainThreadExecutor;
+import com.andiag.retrocache.cache.MockCachingSystem;
+import com.andiag.retrocache.cache.ToStringConverterFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Path;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrefetchTest {
+
+    @Rule
+    public final MockWebServer mServer = new MockWebServer();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mPeakInFlight = new AtomicInteger();
+    private CachedCallAdapterFactory mFactory;
+    private Service mService;
+
+    interface Service {
+        @GET("/{path}")
+        Cached<String> get(@Path("path") String path);
+
+        @GET("/{path}")
+        Call<String> getCall(@Path("path") String path);
+    }
+
+    @Before
+    public void setUp() {
+        // Echo the path back, failing paths starting with "missing"
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                int inFlight = mInFlight.incrementAndGet();
+                int peak = mPeakInFlight.get();
+                while (inFlight > peak && !mPeakInFlight.compareAndSet(peak, inFlight)) {
+                    peak = mPeakInFlight.get();
+                }
+                Thread.sleep(50);
+                mInFlight.decrementAndGet();
+                if (request.getPath().startsWith("/missing")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                return new MockResponse().setBody(request.getPath());
+            }
+        });
+        mFactory = CachedCallAdapterFactory.createWithExecutor(new MockCachingSystem(), new MainThreadExecutor());
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(mFactory)
+                .build();
+        mService = retrofit.create(Service.class);
+    }
+
+    @Test
+    public void fetchesOnlyUncachedCalls() throws Exception {
+        assertThat(mService.get("a").execute().body()).isEqualTo("/a");
+
+        Prefetch prefetch = mFactory.prefetch(Arrays.asList(mService.get("a"), mService.get("b"), mService.get("c")));
+        assertTrue(prefetch.await(10, SECONDS));
+
+        List<Prefetch.Item> items = prefetch.getItems();
+        assertThat(items.get(0).getStatus()).isEqualTo(Prefetch.Status.SKIPPED);
+        assertThat(items.get(1).getStatus()).isEqualTo(Prefetch.Status.FETCHED);
+        assertThat(items.get(1).getCode()).isEqualTo(200);
+        assertThat(items.get(2).getStatus()).isEqualTo(Prefetch.Status.FETCHED);
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+
+        // Served from cache
+        assertThat(mService.get("b").execute().body()).isEqualTo("/b");
+        assertThat(mService.get("c").execute().body()).isEqualTo("/c");
+        assertThat(mServer.getRequestCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void boundsRequestsInFlightAndReportsFailures() throws Exception {
+        List<Cached<String>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            calls.add(mService.get("item" + i));
+        }
+        calls.add(mService.get("missing"));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        Prefetch prefetch = mFactory.prefetch(calls, 2, new Prefetch.Listener() {
+            @Override
+            public void onComplete(Prefetch prefetch) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, SECONDS));
+        assertThat(prefetch.isDone()).isTrue();
+
+        assertThat(prefetch.getCalls(Prefetch.Status.FETCHED)).hasSize(6);
+        Prefetch.Item missing = prefetch.getItems().get(6);
+        assertThat(missing.getStatus()).isEqualTo(Prefetch.Status.FAILED);
+        assertThat(missing.getCode()).isEqualTo(404);
+        assertThat(mPeakInFlight.get()).isLessThanOrEqualTo(2);
+    }
+
+    @Test
+    public void emptyPrefetchIsDone() {
+        Prefetch prefetch = mFactory.prefetch(Collections.<Call<?>>emptyList());
+        assertThat(prefetch.isDone()).isTrue();
+        assertThat(prefetch.getItems()).isEmpty();
+    }
+
+    @Test
+    public void plainCallsRejected() {
+        try {
+            mFactory.prefetch(Collections.singletonList(mService.getCall("a")));
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc).hasMessageStartingWith("Only Cached calls can be prefetched");
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.andiag.retrocache;
+
+import com.andiag.retrocache.cache.MainThreadExecutor;
+import com.andiag.retrocache.cache.MockCachingSystem;
+import com.andiag.retrocache.cache.ToStringConverterFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.POST;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class RefreshAheadTest {
+
+    @Rule
+    public final MockWebServer mServer = new MockWebServer();
+    private final AtomicInteger mVersion = new AtomicInteger();
+    private volatile boolean mOffline;
+    private CachedCallAdapterFactory mFactory;
+    private Service mService;
+    private RefreshAhead mRefreshAhead;
+
+    interface Service {
+        @GET("/feed")
+        Cached<String> feed();
+
+        @POST("/feed")
+        Cached<String> post();
+
+        @GET("/feed")
+        Call<String> plain();
+    }
+
+    @Before
+    public void setUp() {
+        // Answer a new version each time, with validators. Fresh for an hour, so reads are only
+        // refreshed ahead
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (mOffline) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                int version = mVersion.incrementAndGet();
+                return new MockResponse().setBody("v" + version).setHeader("ETag", "\"" + version + "\"")
+                        .setHeader("Cache-Control", "max-age=3600");
+            }
+        });
+        mFactory = CachedCallAdapterFactory.createWithExecutor(new MockCachingSystem(), new MainThreadExecutor());
+        Retrofit retrofit = new Retrofit.Builder()
+                .baseUrl(mServer.url("/"))
+                .addConverterFactory(new ToStringConverterFactory())
+                .addCallAdapterFactory(mFactory)
+                .build();
+        mService = retrofit.create(Service.class);
+    }
+
+    @After
+    public void tearDown() {
+        if (mRefreshAhead != null) {
+            mRefreshAhead.cancel();
+        }
+    }
+
+    @Test
+    public void responseKeptFresh() throws Exception {
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 100, SECONDS);
+        awaitRequests(1);
+        assertThat(mServer.takeRequest().getHeader("If-None-Match")).isNull();
+
+        // Served from the cache
+        assertThat(mService.feed().execute().body()).isEqualTo("v1");
+        assertThat(mServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void refreshedEveryInterval() throws Exception {
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 100, MILLISECONDS);
+        awaitRequests(1);
+        mServer.takeRequest();
+
+        String body = mService.feed().execute().body();
+        awaitRequests(2);
+        assertThat(mServer.takeRequest(5, SECONDS).getHeader("If-None-Match")).isEqualTo("\"1\"");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (body.equals("v1")) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Entry not refreshed");
+            }
+            Thread.sleep(10);
+            body = mService.feed().execute().body();
+        }
+    }
+
+    @Test
+    public void pausedWhileNotRead() throws Exception {
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 50, 150, MILLISECONDS);
+        awaitRequests(1);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!mRefreshAhead.isPaused()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Refreshes not paused");
+            }
+            Thread.sleep(10);
+        }
+        int requests = mServer.getRequestCount();
+        Thread.sleep(300);
+        assertThat(mServer.getRequestCount()).isEqualTo(requests);
+
+        // Reading resumes the refreshes
+        mService.feed().execute();
+        assertThat(mRefreshAhead.isPaused()).isFalse();
+        awaitRequests(requests + 1);
+    }
+
+    @Test
+    public void backsOffWhileOffline() throws Exception {
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 50, 10000, MILLISECONDS);
+        awaitRequests(1);
+        mOffline = true;
+
+        Thread.sleep(1000);
+        // 50, 100, 200, 400 ms
+        assertThat(mServer.getRequestCount()).isBetween(3, 6);
+        assertThat(mRefreshAhead.getFailures()).isGreaterThan(0);
+
+        // The cached entry is kept
+        assertThat(mService.feed().execute().body()).isEqualTo("v1");
+    }
+
+    @Test
+    public void canceledStopsRefreshing() throws Exception {
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 50, MILLISECONDS);
+        awaitRequests(1);
+        mRefreshAhead.cancel();
+        assertThat(mRefreshAhead.isCanceled()).isTrue();
+
+        int requests = mServer.getRequestCount();
+        Thread.sleep(300);
+        assertThat(mServer.getRequestCount()).isLessThanOrEqualTo(requests + 1);
+    }
+
+    @Test
+    public void registeringAgainReplaces() throws Exception {
+        RefreshAhead first = mFactory.refreshAhead(mService.feed(), 100, SECONDS);
+        mRefreshAhead = mFactory.refreshAhead(mService.feed(), 100, SECONDS);
+        assertThat(first.isCanceled()).isTrue();
+        assertThat(mRefreshAhead.isCanceled()).isFalse();
+    }
+
+    @Test
+    public void uncachedCallsThrow() {
+        try {
+            mFactory.refreshAhead(mService.post(), 1, TimeUnit.MINUTES);
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc).hasMessageStartingWith("Only cached calls can be refreshed");
+        }
+        try {
+            mFactory.refreshAhead(mService.plain(), 1, TimeUnit.MINUTES);
+            fail();
+        } catch (IllegalArgumentException exc) {
+            assertThat(exc).hasMessageStartingWith("Only Cached calls can be refreshed");
+        }
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mServer.getRequestCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Expected " + count + " requests, got " + mServer.getRequestCount());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
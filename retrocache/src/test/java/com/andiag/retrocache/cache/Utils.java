@@ -2,9 +2,7 @@ package com.andiag.retrocache.cache;
 
 import android.support.annotation.NonNull;
 
-import com.iagocanalejas.dualcache.hashing.Hashing;
-
-import java.nio.charset.Charset;
+import com.andiag.commons.key.CacheKey;
 
 import okhttp3.HttpUrl;
 
@@ -13,6 +11,6 @@ import okhttp3.HttpUrl;
  */
 public class Utils {
     public static String urlToKey(@NonNull HttpUrl url) {
-        return Hashing.sha1(url.toString(), Charset.defaultCharset());
+        return CacheKey.of(url).toString();
     }
 }